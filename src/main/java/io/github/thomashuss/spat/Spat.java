@@ -4,6 +4,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.json.JsonMapper;
 import com.fasterxml.jackson.dataformat.csv.CsvMapper;
 import org.apache.fury.Fury;
+import org.apache.fury.ThreadSafeFury;
 import org.apache.fury.config.Language;
 
 import java.util.prefs.Preferences;
@@ -15,11 +16,20 @@ public class Spat
     public static final String P_FILE_PATH = "dataPath";
     public static final String P_OPEN_IN_SPOTIFY = "shouldOpenInSpotifyClient";
     public static final String P_REDIRECT_URI = "redirectUri";
-    public static final String P_PUSH_COOLDOWN = "pushCooldown";
+    public static final String P_REQUEST_RATE = "requestRate";
+    public static final String P_SAVE_BATCH_SIZE = "saveBatchSize";
+    public static final String P_CACHE_SIZE = "cacheSize";
+    public static final String P_FLUSH_INTERVAL = "flushInterval";
+    public static final String P_FLUSH_THRESHOLD = "flushThreshold";
+    public static final String P_COMPRESS_THRESHOLD = "compressThreshold";
+    public static final String P_REFRESH_INTERVAL = "refreshInterval";
+    public static final String P_REFRESH_TIME_TO_LIVE = "refreshTimeToLive";
+    public static final String P_REFRESH_BUDGET = "refreshBudget";
+    public static final String P_PAGE_CONCURRENCY = "pageConcurrency";
     public static final Preferences preferences = Preferences.userNodeForPackage(Spat.class);
-    public static final Fury fury = Fury.builder().withLanguage(Language.JAVA)
+    public static final ThreadSafeFury fury = Fury.builder().withLanguage(Language.JAVA)
             .requireClassRegistration(true)
-            .build();
+            .buildThreadSafeFury();
     public static final ObjectMapper mapper = JsonMapper.builder()
             .findAndAddModules()
             .build();
@@ -0,0 +1,11 @@
+package io.github.thomashuss.spat.client;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+
+@FunctionalInterface
+interface PageProcessor
+{
+    void process(JsonNode items) throws IOException, SpotifyClientException;
+}
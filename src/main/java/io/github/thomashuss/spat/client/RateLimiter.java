@@ -0,0 +1,211 @@
+package io.github.thomashuss.spat.client;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces the requests sent to Spotify, learning how many it allows from the requests it refuses, since it does not
+ * publish its rate limit.
+ */
+/*
+ * A token bucket holding up to one second of requests sets the rate, and a cap on requests in flight sets the
+ * concurrency.  Both start at their maximum.  Each refusal halves both and pauses every request for as long as
+ * Spotify asked; each second's worth of accepted requests raises the rate by one request per second and the
+ * concurrency by one.  Requests sent before the last decrease were paced by the old limits, so their refusals do not
+ * decrease them again.
+ *
+ * Requests sent asynchronously wait in a queue rather than on a thread.  The queue is served whenever a request
+ * finishes, and by a timer while it waits for a pause to end or for the bucket to refill.
+ */
+final class RateLimiter
+{
+    private static final double MIN_RATE = 0.5;
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * Returned by <code>tryAcquire</code> when a request has to wait for another to finish.
+     */
+    private static final long UNTIL_RELEASED = Long.MAX_VALUE;
+
+    private final double maxRate;
+    private final int maxConcurrency;
+    private double rate;
+    private double tokens;
+    private int concurrency;
+    private int inFlight;
+    private int accepted;
+    private long refilledAt;
+    private long decreasedAt;
+    private long pausedUntil;
+    private final Queue<CompletableFuture<Long>> waiters = new ArrayDeque<>();
+    private boolean timerScheduled;
+
+    /**
+     * @param maxRate        greatest number of requests sent per second
+     * @param maxConcurrency greatest number of requests in flight at once
+     */
+    RateLimiter(double maxRate, int maxConcurrency)
+    {
+        this.maxRate = Math.max(MIN_RATE, maxRate);
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        rate = this.maxRate;
+        concurrency = this.maxConcurrency;
+        tokens = Math.max(1, rate);
+        refilledAt = decreasedAt = pausedUntil = System.nanoTime();
+    }
+
+    private void refill(long now)
+    {
+        if (now - refilledAt <= 0) return;
+        tokens = Math.min(Math.max(1, rate), tokens + (double) (now - refilledAt) * rate / SECOND);
+        refilledAt = now;
+    }
+
+    /**
+     * Lets a request be sent now if the limits allow it.  Must be called while synchronized on the limiter.
+     *
+     * @param now <code>System.nanoTime()</code>
+     * @return 0 if the request may be sent, in which case it counts as in flight, or else nanoseconds to wait before
+     * trying again, or <code>UNTIL_RELEASED</code> to wait for a request in flight to finish
+     */
+    private long tryAcquire(long now)
+    {
+        refill(now);
+        if (pausedUntil - now > 0) {
+            return pausedUntil - now;
+        } else if (inFlight >= concurrency) {
+            return UNTIL_RELEASED;
+        } else if (tokens < 1) {
+            return Math.max(1, (long) Math.ceil((1 - tokens) / rate * SECOND));
+        }
+        tokens--;
+        inFlight++;
+        return 0;
+    }
+
+    /**
+     * Waits until a request may be sent.  Every call must be followed by a call to <code>release</code> or
+     * <code>throttle</code> once the response arrives or the request fails.
+     *
+     * @return ticket to hand back once the response arrives
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    synchronized long acquire()
+    throws InterruptedIOException
+    {
+        try {
+            for (; ; ) {
+                final long now = System.nanoTime();
+                final long wait = tryAcquire(now);
+                if (wait == 0) return now;
+                if (wait == UNTIL_RELEASED) wait();
+                else TimeUnit.NANOSECONDS.timedWait(this, wait);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to send a request");
+        }
+    }
+
+    /**
+     * Like <code>acquire</code>, but without blocking the calling thread.
+     *
+     * @return future ticket, which completes once the request may be sent
+     */
+    CompletableFuture<Long> acquireAsync()
+    {
+        final CompletableFuture<Long> ret = new CompletableFuture<>();
+        synchronized (this) {
+            waiters.add(ret);
+        }
+        serveWaiters();
+        return ret;
+    }
+
+    /**
+     * Lets as many asynchronous requests go as the limits allow, in the order they asked, and sets a timer if the
+     * next one has to wait for anything but a request in flight.  Their futures are completed on the calling thread,
+     * outside the lock.
+     */
+    private void serveWaiters()
+    {
+        final List<CompletableFuture<Long>> ready = new ArrayList<>();
+        final List<Long> tickets = new ArrayList<>();
+        synchronized (this) {
+            while (!waiters.isEmpty()) {
+                final long now = System.nanoTime();
+                final long wait = tryAcquire(now);
+                if (wait == 0) {
+                    ready.add(waiters.remove());
+                    tickets.add(now);
+                } else {
+                    if (wait != UNTIL_RELEASED && !timerScheduled) {
+                        timerScheduled = true;
+                        CompletableFuture.delayedExecutor(wait, TimeUnit.NANOSECONDS).execute(this::onTimer);
+                    }
+                    break;
+                }
+            }
+        }
+        for (int i = 0; i < ready.size(); i++) {
+            ready.get(i).complete(tickets.get(i));
+        }
+    }
+
+    private void onTimer()
+    {
+        synchronized (this) {
+            timerScheduled = false;
+        }
+        serveWaiters();
+    }
+
+    /**
+     * Records that a request was not refused for being over the rate limit.
+     *
+     * @param ticket ticket returned by <code>acquire</code>
+     */
+    void release(long ticket)
+    {
+        synchronized (this) {
+            inFlight--;
+            if (++accepted >= Math.max(concurrency, rate)) {
+                accepted = 0;
+                rate = Math.min(maxRate, rate + 1);
+                concurrency = Math.min(maxConcurrency, concurrency + 1);
+            }
+            notifyAll();
+        }
+        serveWaiters();
+    }
+
+    /**
+     * Records that a request was refused for being over the rate limit.
+     *
+     * @param ticket ticket returned by <code>acquire</code>
+     * @param pause  nanoseconds for which no request is to be sent
+     */
+    void throttle(long ticket, long pause)
+    {
+        synchronized (this) {
+            inFlight--;
+            final long now = System.nanoTime();
+            if (ticket - decreasedAt >= 0) {
+                decreasedAt = now;
+                accepted = 0;
+                rate = Math.max(MIN_RATE, rate / 2);
+                concurrency = Math.max(1, concurrency / 2);
+                tokens = 0;
+            }
+            if (now + pause - pausedUntil > 0) pausedUntil = now + pause;
+            // the bucket fills from the end of the pause, so that the waiting requests do not all go at once
+            if (pausedUntil - refilledAt > 0) refilledAt = pausedUntil;
+            notifyAll();
+        }
+        serveWaiters();
+    }
+}
@@ -0,0 +1,167 @@
+package io.github.thomashuss.spat.client;
+
+import io.github.thomashuss.spat.Spat;
+import io.github.thomashuss.spat.library.AbstractSpotifyResource;
+import io.github.thomashuss.spat.library.Album;
+import io.github.thomashuss.spat.library.Artist;
+import io.github.thomashuss.spat.library.Library;
+import io.github.thomashuss.spat.library.Track;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Refreshes the tracks, albums and artists of a library in the background, those fetched longest ago first, so that
+ * their metadata stays fresh without syncing everything at once.
+ */
+/*
+ * Every interval, the scheduler spends up to its budget of requests.  Each request refreshes one batch of whichever
+ * type has the resource fetched longest ago, as long as that was longer ago than the time to live.  The batch is
+ * marked fetched once the request succeeds, so resources which Spotify no longer returns are not asked for again on
+ * every run.  Refreshing an album with more tracks than fit in one response takes more than one request.
+ */
+public class RefreshScheduler
+        implements Runnable
+{
+    /**
+     * Time, in milliseconds, between refreshes by default; 0 disables the scheduler.
+     */
+    public static final long DEFAULT_INTERVAL = TimeUnit.HOURS.toMillis(1);
+    /**
+     * Time, in milliseconds, after which a fetched resource is refreshed by default.
+     */
+    public static final long DEFAULT_TIME_TO_LIVE = TimeUnit.DAYS.toMillis(30);
+    /**
+     * Number of requests each refresh makes at most by default.
+     */
+    public static final int DEFAULT_REQUEST_BUDGET = 20;
+    private static final ProgressTracker NO_PROGRESS = progress -> {
+    };
+
+    private final SpotifyClient client;
+    private final Library library;
+    private final long intervalNanos;
+    private final long timeToLive;
+    private final int requestBudget;
+    private final Thread thread;
+    private volatile boolean stopped;
+
+    /**
+     * Creates a scheduler configured by the <code>refreshInterval</code>, <code>refreshTimeToLive</code> and
+     * <code>refreshBudget</code> preferences.
+     *
+     * @param client  client to refresh through
+     * @param library library whose resources are refreshed
+     */
+    public RefreshScheduler(SpotifyClient client, Library library)
+    {
+        this.client = client;
+        this.library = library;
+        intervalNanos = TimeUnit.MILLISECONDS.toNanos(
+                Spat.preferences.getLong(Spat.P_REFRESH_INTERVAL, DEFAULT_INTERVAL));
+        timeToLive = Math.max(0, Spat.preferences.getLong(Spat.P_REFRESH_TIME_TO_LIVE, DEFAULT_TIME_TO_LIVE));
+        requestBudget = Math.max(0, Spat.preferences.getInt(Spat.P_REFRESH_BUDGET, DEFAULT_REQUEST_BUDGET));
+        thread = new Thread(this, "spat-refresh");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Starts refreshing in the background, unless the interval is 0.
+     */
+    public void start()
+    {
+        if (intervalNanos > 0) thread.start();
+    }
+
+    /**
+     * Stops the scheduler and waits for the request it is making, if any.  Must not be called while synchronized
+     * on the client.
+     */
+    public void stop()
+    {
+        stopped = true;
+        if (!thread.isAlive()) return;
+        LockSupport.unpark(thread);
+        boolean interrupted = false;
+        for (; ; ) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private Instant fetchedAt(List<? extends AbstractSpotifyResource> batch)
+    {
+        if (batch.isEmpty()) return null;
+        final Instant ret = library.getFetchedAt(batch.get(0));
+        return ret == null ? Instant.EPOCH : ret;
+    }
+
+    private static boolean isOldest(Instant a, Instant b, Instant c)
+    {
+        return a != null && (b == null || !b.isBefore(a)) && (c == null || !c.isBefore(a));
+    }
+
+    /**
+     * Refreshes the resources fetched longest ago, up to the request budget.
+     *
+     * @return number of batches refreshed
+     * @throws IOException                on I/O errors
+     * @throws SpotifyClientHttpException if there is an unexpected HTTP error when communicating with Spotify
+     */
+    public int refresh()
+    throws IOException, SpotifyClientException
+    {
+        final Instant cutoff = Instant.now().minusMillis(timeToLive);
+        int requests = 0;
+        while (requests < requestBudget && !stopped) {
+            final List<Track> tracks = library.findStaleTracks(cutoff, SpotifyClient.MAXIMUM_TRACK_IDS_REQUEST);
+            final List<Album> albums = library.findStaleAlbums(cutoff, SpotifyClient.MAXIMUM_ALBUM_IDS_REQUEST);
+            final List<Artist> artists = library.findStaleArtists(cutoff, SpotifyClient.MAXIMUM_ARTIST_IDS_REQUEST);
+            final Instant tracksAt = fetchedAt(tracks);
+            final Instant albumsAt = fetchedAt(albums);
+            final Instant artistsAt = fetchedAt(artists);
+            if (isOldest(tracksAt, albumsAt, artistsAt)) {
+                client.updateTracks(tracks, NO_PROGRESS);
+                library.markFetched(tracks);
+            } else if (isOldest(albumsAt, artistsAt, tracksAt)) {
+                client.updateAlbums(albums, NO_PROGRESS);
+                library.markFetched(albums);
+            } else if (artistsAt != null) {
+                client.updateArtists(artists, NO_PROGRESS);
+                library.markFetched(artists);
+            } else {
+                break;
+            }
+            requests++;
+        }
+        return requests;
+    }
+
+    @Override
+    public void run()
+    {
+        long deadline = System.nanoTime() + intervalNanos;
+        while (!stopped) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining > 0) {
+                LockSupport.parkNanos(this, remaining);
+                continue;
+            }
+            deadline = System.nanoTime() + intervalNanos;
+            if (!client.isTokenValid()) continue;
+            try {
+                refresh();
+            } catch (IOException | SpotifyClientException | RuntimeException e) {
+                System.err.println("WARNING: background refresh failed: " + e);
+            }
+        }
+    }
+}
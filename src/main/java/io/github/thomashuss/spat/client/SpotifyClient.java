@@ -8,6 +8,7 @@ import io.github.thomashuss.spat.Spat;
 import io.github.thomashuss.spat.library.AbstractSpotifyResource;
 import io.github.thomashuss.spat.library.Album;
 import io.github.thomashuss.spat.library.Artist;
+import io.github.thomashuss.spat.library.CachedResponse;
 import io.github.thomashuss.spat.library.AudioFeatures;
 import io.github.thomashuss.spat.library.Genre;
 import io.github.thomashuss.spat.library.Label;
@@ -27,10 +28,19 @@ import java.time.LocalDate;
 import java.time.Year;
 import java.time.YearMonth;
 import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 /**
@@ -40,10 +50,22 @@ import java.util.stream.Collectors;
 public class SpotifyClient
         extends SpotifyHttpClient
 {
-    private static final int MAXIMUM_ARTIST_IDS_REQUEST = 50;
+    static final int MAXIMUM_ARTIST_IDS_REQUEST = 50;
     private static final int MAXIMUM_SAVED_RESOURCES_REQUEST = 50;
-    private static final int MAXIMUM_TRACK_IDS_REQUEST = 100;
-    private static final int MAXIMUM_ALBUM_IDS_REQUEST = 20;
+    static final int MAXIMUM_TRACK_IDS_REQUEST = 100;
+    static final int MAXIMUM_ALBUM_IDS_REQUEST = 20;
+    /**
+     * Number of pages of a collection requested at once by default; 1 requests them one after another.
+     */
+    public static final int DEFAULT_PAGE_CONCURRENCY = 4;
+    /**
+     * Number of requests sent per second at most by default.  The rate limiter lowers the rate, and the number of
+     * requests in flight, when Spotify refuses requests, and raises them back towards this and the page concurrency.
+     */
+    public static final int DEFAULT_REQUEST_RATE = 20;
+    private static final ProgressTracker NO_PROGRESS = progress -> {
+    };
+    private static final Pattern OFFSET_PATTERN = Pattern.compile("([?&]offset=)\\d+");
     private static final URL SAVED_TRACKS_URL;
 
     static {
@@ -73,36 +95,24 @@ public class SpotifyClient
                                               ProgressTracker progressTracker)
     throws IOException, SpotifyClientException
     {
-        String apiUrl;
-        JsonNode root;
-        JsonNode items;
-        int size = 0;
-        float progress = 0;
         progressTracker.updateProgress(0);
-
-        apiUrl = "https://api.spotify.com/v1/playlists/" + p.getId();
-        root = apiToTree(makeUri(apiUrl));
-        p.setSnapshotId(root.get("snapshot_id").asText());
+        JsonNode root = apiToTree(makeUri("https://api.spotify.com/v1/playlists/" + p.getId()));
+        final String snapshotId = root.get("snapshot_id").asText();
 
         root = root.get("tracks");
         if (root != null) {
-            p.clearResources();
-            do {
-                if (size == 0) {
-                    if ((size = root.get("total").asInt(0)) == 0) {
-                        break;
-                    }
-                }
-                if ((items = root.get("items")) != null) {
-                    treeToSavedTrackCollection(items, p);
-                    progress += (float) items.size() / size * 100;
-                    progressTracker.updateProgress((int) progress);
-                }
-            } while ((root = root.get("next")) != null
-                    && (apiUrl = root.asText(null)) != null
-                    && (root = apiToTree(makeUri(apiUrl))) != null);
-            library.markContentsModified(p);
+            final boolean bulk = library.beginBulkLoad();
+            try {
+                p.clearResources();
+                forEachPage(root, items -> treeToSavedTrackCollection(items, p), progressTracker);
+                library.markContentsModified(p);
+            } finally {
+                if (bulk) library.endBulkLoad();
+            }
         }
+        // only once every track is in, so that a sync cut short is not taken for an unchanged playlist
+        p.setSnapshotId(snapshotId);
+        library.markModified(p);
         progressTracker.updateProgress(100);
     }
 
@@ -119,6 +129,7 @@ public class SpotifyClient
                         + insertBefore + ",\"range_length\":" + rangeLength
                         + ",\"snapshot_id\":\"" + playlist.getSnapshotId() + "\"}")) {
             playlist.setSnapshotId(mapper.readTree(reader).get("snapshot_id").asText());
+            library.markModified(playlist);
         }
     }
 
@@ -141,6 +152,7 @@ public class SpotifyClient
 
         try (BufferedReader reader = getAPIReader(url, body.toString())) {
             playlist.setSnapshotId(mapper.readTree(reader).get("snapshot_id").asText());
+            library.markModified(playlist);
         }
     }
 
@@ -176,6 +188,7 @@ public class SpotifyClient
 
         try (BufferedReader reader = getAPIReader(url, "DELETE", body.toString())) {
             playlist.setSnapshotId(mapper.readTree(reader).get("snapshot_id").asText());
+            library.markModified(playlist);
         }
     }
 
@@ -239,63 +252,41 @@ public class SpotifyClient
     public synchronized void populateSavedTracks(ProgressTracker progressTracker)
     throws IOException, SpotifyClientException
     {
-        String apiUrl = "https://api.spotify.com/v1/me/tracks?limit=50";
-        JsonNode root;
-        JsonNode items;
-        int size = 0;
-        float progress = 0;
         progressTracker.updateProgress(0);
         SavedTrackCollection ls = library.getLikedSongs();
 
-        ls.clearResources();
-        do {
-            root = apiToTree(makeUri(apiUrl));
-            if (size == 0) {
-                if ((size = root.get("total").asInt(0)) == 0) {
-                    break;
-                }
-            }
-            if ((items = root.get("items")) != null) {
-                treeToSavedTrackCollection(items, ls);
-                progress += (float) items.size() / size * 100;
-                progressTracker.updateProgress((int) progress);
-            }
-            apiUrl = (root = root.get("next")) != null ? root.asText(null) : null;
-        } while (apiUrl != null);
-        ls.reverse();
-        library.markContentsModified(ls);
+        final boolean bulk = library.beginBulkLoad();
+        try {
+            ls.clearResources();
+            forEachPage(apiToTree(makeUri("https://api.spotify.com/v1/me/tracks?limit=50")),
+                    items -> treeToSavedTrackCollection(items, ls), progressTracker);
+            ls.reverse();
+            library.markContentsModified(ls);
+        } finally {
+            if (bulk) library.endBulkLoad();
+        }
         progressTracker.updateProgress(100);
     }
 
     public synchronized void populateSavedAlbums(ProgressTracker progressTracker)
     throws IOException, SpotifyClientException
     {
-        String apiUrl = "https://api.spotify.com/v1/me/albums?limit=50";
-        JsonNode root;
-        JsonNode items;
-        int size = 0;
-        float progress = 0;
         progressTracker.updateProgress(0);
         SavedAlbumCollection sa = library.getSavedAlbums();
 
-        do {
-            root = apiToTree(makeUri(apiUrl));
-            if (size == 0) {
-                if ((size = root.get("total").asInt(0)) == 0) {
-                    break;
-                }
-            }
-            items = root.get("items");
-            if (items != null && items.isArray()) {
-                for (JsonNode savedAlbumNode : items) {
-                    library.saveResourceToCollection(treeToAlbum(savedAlbumNode.get("album"), true),
-                            ZonedDateTime.parse(savedAlbumNode.get("added_at").asText()), sa);
+        final boolean bulk = library.beginBulkLoad();
+        try {
+            forEachPage(apiToTree(makeUri("https://api.spotify.com/v1/me/albums?limit=50")), items -> {
+                if (items.isArray()) {
+                    for (JsonNode savedAlbumNode : items) {
+                        library.saveResourceToCollection(treeToAlbum(savedAlbumNode.get("album"), true),
+                                ZonedDateTime.parse(savedAlbumNode.get("added_at").asText()), sa);
+                    }
                 }
-                progress += (float) items.size() / size * 100;
-                progressTracker.updateProgress((int) progress);
-            }
-            apiUrl = (root = root.get("next")) != null ? root.asText(null) : null;
-        } while (apiUrl != null);
+            }, progressTracker);
+        } finally {
+            if (bulk) library.endBulkLoad();
+        }
         progressTracker.updateProgress(100);
     }
 
@@ -309,32 +300,67 @@ public class SpotifyClient
     public synchronized Set<Playlist> updateMyPlaylists(ProgressTracker progressTracker)
     throws IOException, SpotifyClientException
     {
-        JsonNode items;
-        JsonNode root;
-        String nextUrl = "https://api.spotify.com/v1/me/playlists";
+        return updateMyPlaylists(progressTracker, null);
+    }
+
+    /**
+     * Updates the user's playlists as <code>updateMyPlaylists</code> does, then downloads the tracks of only those
+     * playlists whose snapshot ID differs from the one their tracks were last downloaded or pushed at.  A playlist
+     * whose tracks were never downloaded counts as changed.  Changed playlists with local edits are left alone, since
+     * downloading them would overwrite the edits; they still count as changed until they are synced.
+     *
+     * @param edited  playlists which have edits that have not been pushed
+     * @param synced  receives the playlists whose tracks were downloaded
+     * @param skipped receives the changed playlists which were not downloaded because they are in <code>edited</code>
+     * @return playlists which were deleted from Spotify
+     * @throws IOException                on I/O errors
+     * @throws SpotifyClientHttpException if there is an unexpected HTTP error when communicating with Spotify
+     */
+    public synchronized Set<Playlist> syncChangedPlaylists(ProgressTracker progressTracker,
+                                                           Set<Playlist> edited,
+                                                           Collection<Playlist> synced,
+                                                           Collection<Playlist> skipped)
+    throws IOException, SpotifyClientException
+    {
+        progressTracker.updateProgress(0);
+        final List<Playlist> changed = new ArrayList<>();
+        final Set<Playlist> deleted = updateMyPlaylists(NO_PROGRESS, changed);
+        for (Playlist p : changed) {
+            if (edited.contains(p)) skipped.add(p);
+        }
+        changed.removeAll(edited);
+        final int size = changed.size();
+        for (int i = 0; i < size; i++) {
+            final int done = i;
+            final Playlist p = changed.get(i);
+            populatePlaylist(p, progress -> progressTracker.updateProgress((done * 100 + progress) / size));
+            synced.add(p);
+        }
+        progressTracker.updateProgress(100);
+        return deleted;
+    }
+
+    /**
+     * @param changed if not null, receives the playlists whose listed snapshot ID differs from their own
+     */
+    private Set<Playlist> updateMyPlaylists(ProgressTracker progressTracker, Collection<Playlist> changed)
+    throws IOException, SpotifyClientException
+    {
         Set<Playlist> deleted = new HashSet<>();
         library.getPlaylists(deleted);
-        int size = 0;
-        float progress = 0;
         progressTracker.updateProgress(0);
-        do {
-            root = apiToTree(makeUri(nextUrl));
-            if (size == 0) {
-                if ((size = root.get("total").asInt(0)) == 0) {
-                    break;
-                }
-            }
-            items = root.get("items");
-
-            if (items != null && items.isArray()) {
+        forEachPage(apiToTree(makeUri("https://api.spotify.com/v1/me/playlists")), items -> {
+            if (items.isArray()) {
                 for (JsonNode node : items) {
-                    deleted.remove(treeToPlaylist(node));
+                    final Playlist p = treeToPlaylist(node);
+                    deleted.remove(p);
+                    if (changed != null && p != null
+                            && !Objects.equals(node.path("snapshot_id").asText(null), p.getSnapshotId())) {
+                        changed.add(p);
+                    }
                 }
-                progress += (float) items.size() / size * 100;
-                progressTracker.updateProgress((int) progress);
             }
-            nextUrl = (root = root.get("next")) != null ? root.asText(null) : null;
-        } while (nextUrl != null);
+        }, progressTracker);
         progressTracker.updateProgress(100);
         deleted.forEach(library::deletePlaylist);
         return deleted;
@@ -377,6 +403,7 @@ public class SpotifyClient
                             + joinIds(trackSub)
             )).get("tracks");
             if (tracksNode.isArray()) {
+                prefetchTracks(tracksNode, null);
                 for (JsonNode trackNode : tracksNode) {
                     treeToTrack(trackNode, true, null);
                 }
@@ -393,7 +420,7 @@ public class SpotifyClient
     public synchronized void updateArtist(Artist artist)
     throws IOException, SpotifyClientException
     {
-        treeToArtist(apiToTree(makeUri("https://api.spotify.com/v1/artists/" + artist.getId())), true);
+        treeToArtist(cachedApiToTree(makeUri("https://api.spotify.com/v1/artists/" + artist.getId()), artist), true);
     }
 
     public synchronized void updateArtists(List<Artist> artists, ProgressTracker progressTracker)
@@ -403,6 +430,7 @@ public class SpotifyClient
             JsonNode artistsNode = apiToTree(makeUri(
                     "https://api.spotify.com/v1/artists?ids=" + joinIds(artistSub))).get("artists");
             if (artistsNode.isArray()) {
+                prefetchArtists(artistsNode);
                 for (JsonNode node : artistsNode) {
                     treeToArtist(node, true);
                 }
@@ -413,7 +441,7 @@ public class SpotifyClient
     public synchronized void updateAlbum(Album album)
     throws IOException, SpotifyClientException
     {
-        treeToAlbum(apiToTree(makeUri("https://api.spotify.com/v1/albums/" + album.getId())), true);
+        treeToAlbum(cachedApiToTree(makeUri("https://api.spotify.com/v1/albums/" + album.getId()), album), true);
     }
 
     public synchronized void updateAlbums(List<Album> albums, ProgressTracker progressTracker)
@@ -423,6 +451,7 @@ public class SpotifyClient
             JsonNode albumsNode = apiToTree(makeUri("https://api.spotify.com/v1/albums?ids="
                     + joinIds(albumSub))).get("albums");
             if (albumsNode.isArray()) {
+                prefetchAlbums(albumsNode);
                 for (JsonNode node : albumsNode) {
                     treeToAlbum(node, true);
                 }
@@ -466,6 +495,7 @@ public class SpotifyClient
                 a.setFollowers(node.get("followers").get("total").asInt(0));
             }
             library.markModified(a);
+            library.markFetched(a);
         }
         return a;
     }
@@ -525,7 +555,9 @@ public class SpotifyClient
                 if (apiUrl != null) {
                     tracksNode = apiToTree(makeUri(apiUrl));
                 }
-                for (JsonNode trackListNode : tracksNode.get("items")) {
+                final JsonNode items = tracksNode.get("items");
+                prefetchTracks(items, null);
+                for (JsonNode trackListNode : items) {
                     tracks[i++] = treeToTrack(trackListNode, false, a);
                 }
                 apiUrl = (tracksNode = tracksNode.get("next")) != null ? tracksNode.asText(null) : null;
@@ -558,6 +590,7 @@ public class SpotifyClient
                 reader.readValue(extIdNode);
             }
             library.markModified(a);
+            library.markFetched(a);
         }
         return a;
     }
@@ -593,6 +626,7 @@ public class SpotifyClient
             Artist[] artists = treeToArtists(trackNode.get("artists"));
             if (artists != null) t.setArtists(artists);
             library.markModified(t);
+            library.markFetched(t);
         }
         return t;
     }
@@ -625,6 +659,7 @@ public class SpotifyClient
     {
         if (items == null) return;
         if (items.isArray()) {
+            prefetchTracks(items, "track");
             JsonNode trackNode;
             Track track;
             for (JsonNode node : items) {
@@ -640,6 +675,85 @@ public class SpotifyClient
         }
     }
 
+    private static void collectId(JsonNode node, Set<String> ids)
+    {
+        JsonNode idNode;
+        if (node != null && (idNode = node.get("id")) != null && idNode.isTextual()
+                && !(node.has("is_local") && node.get("is_local").asBoolean(false))) {
+            ids.add(idNode.asText());
+        }
+    }
+
+    private static void collectIds(JsonNode node, Set<String> ids)
+    {
+        if (node != null && node.isArray()) {
+            for (JsonNode element : node) {
+                collectId(element, ids);
+            }
+        }
+    }
+
+    /**
+     * Reads the tracks referenced by <code>nodes</code>, along with their albums and artists, from the library in
+     * bulk, so that hydrating each node does not go to the database on its own.  The library's cache of recently
+     * used resources, which holds far more than one page, keeps them until the nodes have been hydrated.
+     *
+     * @param nodes   Spotify API nodes corresponding to tracks
+     * @param wrapper name of the field holding the track in each node, or null if the nodes are tracks
+     */
+    private void prefetchTracks(JsonNode nodes, String wrapper)
+    {
+        if (nodes == null || !nodes.isArray()) return;
+        Set<String> trackIds = new HashSet<>();
+        Set<String> albumIds = new HashSet<>();
+        Set<String> artistIds = new HashSet<>();
+        JsonNode albumNode;
+        for (JsonNode node : nodes) {
+            if (wrapper != null) node = node.get(wrapper);
+            if (node == null) continue;
+            collectId(node, trackIds);
+            collectIds(node.get("artists"), artistIds);
+            if ((albumNode = node.get("album")) != null) {
+                collectId(albumNode, albumIds);
+                collectIds(albumNode.get("artists"), artistIds);
+            }
+        }
+        library.tracksOf(trackIds);
+        library.albumsOf(albumIds);
+        library.artistsOf(artistIds);
+    }
+
+    /**
+     * Reads the albums referenced by <code>nodes</code>, along with their artists, from the library in bulk.
+     *
+     * @param nodes Spotify API nodes corresponding to albums
+     * @see #prefetchTracks(JsonNode, String)
+     */
+    private void prefetchAlbums(JsonNode nodes)
+    {
+        Set<String> albumIds = new HashSet<>();
+        Set<String> artistIds = new HashSet<>();
+        for (JsonNode node : nodes) {
+            collectId(node, albumIds);
+            collectIds(node.get("artists"), artistIds);
+        }
+        library.albumsOf(albumIds);
+        library.artistsOf(artistIds);
+    }
+
+    /**
+     * Reads the artists referenced by <code>nodes</code> from the library in bulk.
+     *
+     * @param nodes Spotify API nodes corresponding to artists
+     * @see #prefetchTracks(JsonNode, String)
+     */
+    private void prefetchArtists(JsonNode nodes)
+    {
+        Set<String> artistIds = new HashSet<>();
+        collectIds(nodes, artistIds);
+        library.artistsOf(artistIds);
+    }
+
     /**
      * Adds the playlist metadata represented by <code>node</code> to the library.
      *
@@ -664,6 +778,105 @@ public class SpotifyClient
         }
     }
 
+    /**
+     * Requests a single resource which seldom changes, asking Spotify for the body only if it differs from the
+     * response cached in the library for that resource.  An unchanged response is parsed again from the cache, since
+     * the resources it maps to may have been written since from other responses.  Batches are not cached, since the
+     * tag of a batch covers only that exact set of IDs.
+     */
+    private JsonNode cachedApiToTree(URI apiUrl, AbstractSpotifyResource resource)
+    throws IOException, SpotifyClientException
+    {
+        final CachedResponse cached = library.getCachedResponse(resource);
+        final CachedResponse response = getAPIResponse(apiUrl, cached);
+        if (response != cached && response.getTag() != null) library.cacheResponse(resource, response);
+        return mapper.readTree(response.getBody());
+    }
+
+    /**
+     * Requests a page without waiting for it.  The page is parsed on the thread which receives it.
+     */
+    private CompletableFuture<JsonNode> apiToTreeAsync(URI apiUrl)
+    throws IOException, SpotifyClientException
+    {
+        return getAPIReaderAsync(apiUrl).thenApply(reader -> {
+            try (reader) {
+                return mapper.readTree(reader);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    private static JsonNode join(CompletableFuture<JsonNode> page)
+    throws IOException, SpotifyClientException
+    {
+        try {
+            return page.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException cause) throw cause;
+            if (e.getCause() instanceof SpotifyClientException cause) throw cause;
+            throw e;
+        }
+    }
+
+    /**
+     * Hands the items of every page of a paging object to <code>task</code>, in order.  Once the first page has
+     * given the total, the other pages are requested by offset, up to <code>pageConcurrency</code> at once, rather
+     * than one after another by following <code>next</code>.
+     *
+     * @param root            first page
+     * @param task            processes the items of a page
+     * @param progressTracker tracks the share of items processed
+     * @throws IOException                on I/O errors
+     * @throws SpotifyClientHttpException if there is an unexpected HTTP error when communicating with Spotify
+     */
+    private void forEachPage(JsonNode root, PageProcessor task, ProgressTracker progressTracker)
+    throws IOException, SpotifyClientException
+    {
+        final int size = root.path("total").asInt(0);
+        if (size == 0) return;
+        final int limit = root.path("limit").asInt(0);
+        final int concurrency = Spat.preferences.getInt(Spat.P_PAGE_CONCURRENCY, DEFAULT_PAGE_CONCURRENCY);
+        final String next = root.path("next").asText(null);
+        int done = processPage(root, task, progressTracker, 0, size);
+        if (next == null) return;
+
+        final Matcher offsetMatcher = OFFSET_PATTERN.matcher(next);
+        if (concurrency <= 1 || limit <= 0 || !offsetMatcher.find()) {
+            String apiUrl = next;
+            do {
+                root = apiToTree(makeUri(apiUrl));
+                done = processPage(root, task, progressTracker, done, size);
+            } while ((apiUrl = root.path("next").asText(null)) != null);
+            return;
+        }
+
+        // if a page fails, those still pending are left to arrive, since reading them is what closes the response
+        final Deque<CompletableFuture<JsonNode>> pending = new ArrayDeque<>();
+        int offset = root.path("offset").asInt(0) + limit;
+        while (offset < size || !pending.isEmpty()) {
+            while (offset < size && pending.size() < concurrency) {
+                pending.add(apiToTreeAsync(makeUri(offsetMatcher.replaceFirst("$1" + offset))));
+                offset += limit;
+            }
+            done = processPage(join(pending.remove()), task, progressTracker, done, size);
+        }
+    }
+
+    private static int processPage(JsonNode page, PageProcessor task, ProgressTracker progressTracker,
+                                   int done, int size)
+    throws IOException, SpotifyClientException
+    {
+        final JsonNode items = page.get("items");
+        if (items != null) {
+            task.process(items);
+            done += items.size();
+            progressTracker.updateProgress((int) ((float) done / size * 100));
+        }
+        return done;
+    }
+
     private static <T> void doIntervals(final int intervalSize, List<T> list, ListIntervalProcessor<T> task,
                                         ProgressTracker progressTracker)
     throws IOException, SpotifyClientException
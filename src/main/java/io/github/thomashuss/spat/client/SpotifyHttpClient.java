@@ -1,20 +1,27 @@
 package io.github.thomashuss.spat.client;
 
-import javax.net.ssl.HttpsURLConnection;
+import io.github.thomashuss.spat.Spat;
+import io.github.thomashuss.spat.library.CachedResponse;
+
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.MalformedURLException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.Base64;
@@ -24,32 +31,59 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Implements communication between the Spotify client and server.
  */
+/*
+ * Every request goes through one HttpClient, which negotiates HTTP/2 with Spotify and multiplexes requests over the
+ * connections it keeps open, so paging through a collection does not pay for a TCP and TLS handshake per page.
+ * The access token is refreshed, if it has expired, before a request is first sent, and each attempt is built anew
+ * with the current token.  If Spotify refuses the token anyway, it is refreshed and the request sent once more.
+ *
+ * Every request waits for the rate limiter before it is sent; an asynchronous request waits without holding a
+ * thread.  A request refused with 429 is sent again once the pause Spotify asked for in Retry-After is over, since it
+ * was not carried out.  A GET which fails with a server error or an I/O error is sent again after a backoff, doubling
+ * with each attempt and jittered so that the requests of a collection do not all come back at once; other methods
+ * are not, since they may have been carried out.
+ */
 abstract class SpotifyHttpClient
 {
     private static final Pattern QUERY_PATTERN = Pattern.compile("([^=?&]+)=([^&]+)");
     private static final String API_SCOPE = "playlist-read-private playlist-read-collaborative playlist-modify-private playlist-modify-public user-library-modify user-library-read";
     private static final Set<String> SCOPE_SET = new HashSet<>(Arrays.asList(API_SCOPE.split(" ")));
     private static final String PKCE_POSSIBLE = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
-    private static final URL SPOTIFY_TOKEN_URL;
-
-    static {
-        try {
-            SPOTIFY_TOKEN_URL = new URI("https://accounts.spotify.com/api/token").toURL();
-        } catch (URISyntaxException | MalformedURLException e) {
-            throw new RuntimeException(e);
-        }
-    }
+    private static final URI SPOTIFY_TOKEN_URI = URI.create("https://accounts.spotify.com/api/token");
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(20);
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long BACKOFF = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * Longest pause asked for in Retry-After which is waited out, rather than failing the request.
+     */
+    private static final long MAX_RETRY_AFTER = TimeUnit.MINUTES.toNanos(1);
 
     private static final int PKCE_CODE_LENGTH = 64;
     private final Base64.Encoder b64Encoder;
     private final MessageDigest digest;
     private final Token token;
+    private final HttpClient http;
+    private final RateLimiter limiter;
+    /**
+     * Refreshes the access token for asynchronous requests which Spotify refused, since refreshing blocks.
+     */
+    private final Executor tokenRefresher;
     private String clientId;
     private String loginState;
     private String pkceCodeVerifier;
@@ -64,6 +98,18 @@ abstract class SpotifyHttpClient
             throw new RuntimeException(e);
         }
         token = new Token();
+        http = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(CONNECT_TIMEOUT)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+        limiter = new RateLimiter(Spat.preferences.getInt(Spat.P_REQUEST_RATE, SpotifyClient.DEFAULT_REQUEST_RATE),
+                Spat.preferences.getInt(Spat.P_PAGE_CONCURRENCY, SpotifyClient.DEFAULT_PAGE_CONCURRENCY));
+        tokenRefresher = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            final Thread thread = new Thread(r, "spat-token-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     private static Map<String, String> decodeQuery(URI uri)
@@ -96,49 +142,246 @@ abstract class SpotifyHttpClient
         return token;
     }
 
-    private BufferedReader getConnectionReader(URL target)
-    throws IOException, SpotifyClientException
+    private static boolean isSuccess(int code)
     {
-        HttpsURLConnection con;
-        int code;
+        return code == HttpURLConnection.HTTP_OK || code == HttpURLConnection.HTTP_CREATED
+                || code == HttpURLConnection.HTTP_ACCEPTED;
+    }
 
-        refreshAccessToken();
-        con = (HttpsURLConnection) target.openConnection();
-        con.setRequestMethod("GET");
-        con.setRequestProperty("Authorization", token.getAccessAuthorization());
-
-        code = con.getResponseCode();
-        if (code == HttpsURLConnection.HTTP_OK) {
-            return new BufferedReader(new InputStreamReader(con.getInputStream()));
-        } else {
-            throw new SpotifyClientHttpException(code);
+    /**
+     * Turns a response into a reader of its body, or throws if the response is not a success.
+     *
+     * @param response response whose body has not been read
+     * @return reader of the body, decoded as UTF-8
+     * @throws SpotifyClientHttpException if the response code is not a success
+     */
+    private static BufferedReader toReader(HttpResponse<InputStream> response)
+    throws IOException, SpotifyClientHttpException
+    {
+        final int code = response.statusCode();
+        if (isSuccess(code)) {
+            return new BufferedReader(new InputStreamReader(response.body(), StandardCharsets.UTF_8));
         }
+        // releases the stream so that the connection can carry other requests
+        response.body().close();
+        throw new SpotifyClientHttpException(code);
     }
 
-    private BufferedReader getConnectionReader(URL target, String method, String data,
-                                               String type, boolean shouldAuthenticate)
-    throws IOException, SpotifyClientHttpException
+    private static long backoff(int attempt)
+    {
+        final long max = BACKOFF << (attempt - 1);
+        return ThreadLocalRandom.current().nextLong(max / 2, max + 1);
+    }
+
+    private static boolean isIdempotent(HttpRequest request)
+    {
+        return "GET".equals(request.method());
+    }
+
+    private static boolean shouldRetry(HttpRequest request, Throwable e, int attempt)
+    {
+        if (e instanceof CompletionException && e.getCause() != null) e = e.getCause();
+        return attempt < MAX_ATTEMPTS && isIdempotent(request)
+                && e instanceof IOException && !(e instanceof InterruptedIOException);
+    }
+
+    private static long retryAfter(HttpResponse<?> response, int attempt)
+    {
+        final String header = response.headers().firstValue("Retry-After").orElse(null);
+        if (header != null) {
+            try {
+                return TimeUnit.SECONDS.toNanos(Math.max(0, Long.parseLong(header.trim())));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return backoff(attempt);
+    }
+
+    private static void discard(HttpResponse<InputStream> response)
     {
-        int responseCode;
-        HttpsURLConnection con = (HttpsURLConnection) target.openConnection();
+        try {
+            response.body().close();
+        } catch (IOException ignored) {
+        }
+    }
 
-        con.setRequestMethod(method);
-        if (shouldAuthenticate) {
-            con.setRequestProperty("Authorization", token.getAccessAuthorization());
+    /**
+     * Tells the rate limiter how a request went and decides whether to send it again.
+     *
+     * @param request  request sent
+     * @param response response to it
+     * @param ticket   ticket of the request from the rate limiter
+     * @param attempt  number of times the request has been sent
+     * @return nanoseconds to wait before sending the request again, or -1 to hand back the response
+     */
+    private long afterResponse(HttpRequest request, HttpResponse<?> response, long ticket, int attempt)
+    {
+        final int code = response.statusCode();
+        if (code == HTTP_TOO_MANY_REQUESTS) {
+            final long pause = retryAfter(response, attempt);
+            final boolean retry = attempt < MAX_ATTEMPTS && pause <= MAX_RETRY_AFTER;
+            // the limiter holds every request back until the pause is over
+            limiter.throttle(ticket, retry ? pause : 0);
+            return retry ? 0 : -1;
         }
-        con.setRequestProperty("Content-Length", Integer.toString(data.getBytes().length));
-        con.setRequestProperty("Content-Type", type);
-        con.setDoOutput(true);
-        try (OutputStreamWriter writer = new OutputStreamWriter(con.getOutputStream())) {
-            writer.write(data);
+        limiter.release(ticket);
+        if (code >= HttpURLConnection.HTTP_INTERNAL_ERROR && attempt < MAX_ATTEMPTS && isIdempotent(request)) {
+            return backoff(attempt);
+        }
+        return -1;
+    }
+
+    /**
+     * Sends a request, retrying it as the class comment describes.
+     *
+     * @param requests builds each attempt of the request
+     * @return the last response
+     * @throws IOException on I/O errors which are not retried
+     */
+    private HttpResponse<InputStream> send(Supplier<HttpRequest> requests)
+    throws IOException
+    {
+        HttpRequest request = null;
+        try {
+            for (int attempt = 1; ; attempt++) {
+                final long ticket = limiter.acquire();
+                request = requests.get();
+                final HttpResponse<InputStream> response;
+                final long delay;
+                try {
+                    response = http.send(request, HttpResponse.BodyHandlers.ofInputStream());
+                } catch (IOException e) {
+                    limiter.release(ticket);
+                    if (!shouldRetry(request, e, attempt)) throw e;
+                    TimeUnit.NANOSECONDS.sleep(backoff(attempt));
+                    continue;
+                } catch (InterruptedException e) {
+                    limiter.release(ticket);
+                    throw e;
+                }
+                if ((delay = afterResponse(request, response, ticket, attempt)) < 0) return response;
+                discard(response);
+                TimeUnit.NANOSECONDS.sleep(delay);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for "
+                    + (request == null ? "a request" : request.uri()));
         }
+    }
+
+    /**
+     * Sends a request without blocking, retrying it as the class comment describes.
+     *
+     * @param requests builds each attempt of the request
+     * @param attempt  number of the attempt to send
+     * @return future last response
+     */
+    private CompletableFuture<HttpResponse<InputStream>> sendAsync(Supplier<HttpRequest> requests, int attempt)
+    {
+        return limiter.acquireAsync().thenCompose(ticket -> {
+            final HttpRequest request = requests.get();
+            return http.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream())
+                    .handle((response, e) -> {
+                        final long delay;
+                        if (e != null) {
+                            limiter.release(ticket);
+                            if (!shouldRetry(request, e, attempt)) {
+                                return CompletableFuture.<HttpResponse<InputStream>>failedFuture(e);
+                            }
+                            delay = backoff(attempt);
+                        } else if ((delay = afterResponse(request, response, ticket, attempt)) < 0) {
+                            return CompletableFuture.completedFuture(response);
+                        } else {
+                            discard(response);
+                        }
+                        return CompletableFuture.supplyAsync(() -> attempt + 1,
+                                        CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS))
+                                .thenCompose(next -> sendAsync(requests, next));
+                    })
+                    .thenCompose(Function.identity());
+        });
+    }
+
+    private HttpRequest.Builder authorizedRequest(URI target)
+    {
+        return HttpRequest.newBuilder(target).header("Authorization", token.getAccessAuthorization());
+    }
+
+    private static String authorizationOf(HttpResponse<?> response)
+    {
+        return response.request().headers().firstValue("Authorization").orElse(null);
+    }
+
+    /**
+     * Sends a request with the current access token, refreshing the token first if it has expired, and again if
+     * Spotify refuses it.
+     *
+     * @param target   URL of Spotify object
+     * @param requests builds each attempt of the request from a builder which carries the current token
+     * @return the last response
+     * @throws IOException            on I/O errors
+     * @throws SpotifyClientException if the access token could not be refreshed
+     */
+    private HttpResponse<InputStream> sendAuthorized(URI target, Function<HttpRequest.Builder, HttpRequest> requests)
+    throws IOException, SpotifyClientException
+    {
+        refreshAccessToken();
+        final Supplier<HttpRequest> attempts = () -> requests.apply(authorizedRequest(target));
+        final HttpResponse<InputStream> response = send(attempts);
+        if (response.statusCode() != HttpURLConnection.HTTP_UNAUTHORIZED) return response;
+        discard(response);
+        refreshRefusedToken(authorizationOf(response));
+        return send(attempts);
+    }
+
+    /**
+     * Like <code>sendAuthorized</code>, but without blocking, apart from refreshing a token which has expired.  A
+     * token which Spotify refuses is refreshed on another thread.
+     */
+    private CompletableFuture<HttpResponse<InputStream>> sendAuthorizedAsync(URI target,
+                                                                             Function<HttpRequest.Builder, HttpRequest> requests)
+    throws IOException, SpotifyClientException
+    {
+        refreshAccessToken();
+        final Supplier<HttpRequest> attempts = () -> requests.apply(authorizedRequest(target));
+        return sendAsync(attempts, 1).thenCompose(response -> {
+            if (response.statusCode() != HttpURLConnection.HTTP_UNAUTHORIZED) {
+                return CompletableFuture.completedFuture(response);
+            }
+            discard(response);
+            final String refused = authorizationOf(response);
+            return CompletableFuture.runAsync(() -> {
+                try {
+                    refreshRefusedToken(refused);
+                } catch (IOException | SpotifyClientException e) {
+                    throw new CompletionException(e);
+                }
+            }, tokenRefresher).thenCompose(v -> sendAsync(attempts, 1));
+        });
+    }
+
+    private static Function<HttpRequest.Builder, HttpRequest> withBody(String method, String data, String type)
+    {
+        return request -> request.header("Content-Type", type)
+                .method(method, HttpRequest.BodyPublishers.ofString(data, StandardCharsets.UTF_8))
+                .build();
+    }
+
+    private BufferedReader getConnectionReader(URI target, String method, String data, String type)
+    throws IOException, SpotifyClientHttpException
+    {
+        final Function<HttpRequest.Builder, HttpRequest> requests = withBody(method, data, type);
+        return toReader(send(() -> requests.apply(HttpRequest.newBuilder(target))));
+    }
 
-        responseCode = con.getResponseCode();
-        if (responseCode == HttpsURLConnection.HTTP_OK || responseCode == HttpsURLConnection.HTTP_CREATED
-                || responseCode == HttpsURLConnection.HTTP_ACCEPTED) {
-            return new BufferedReader(new InputStreamReader(con.getInputStream()));
-        } else {
-            throw new SpotifyClientHttpException(responseCode);
+    private static URI toUri(URL target)
+    throws SpotifyAPIResponseException
+    {
+        try {
+            return target.toURI();
+        } catch (URISyntaxException e) {
+            throw new SpotifyAPIResponseException(e);
         }
     }
 
@@ -153,22 +396,68 @@ abstract class SpotifyHttpClient
     BufferedReader getAPIReader(URI target)
     throws IOException, SpotifyClientException
     {
-        refreshAccessToken();
-        return getConnectionReader(target.toURL());
+        return toReader(sendAuthorized(target, request -> request.GET().build()));
+    }
+
+    /**
+     * Sends a GET request to Spotify which, if there is a cached response, asks for the body only if it has changed
+     * since.
+     *
+     * @param target URL of Spotify object
+     * @param cached last response to the same request, or null
+     * @return <code>cached</code> if Spotify answered that it is still current, or else the new response, whose tag
+     * is null if Spotify did not send one
+     * @throws IOException                on I/O errors
+     * @throws SpotifyClientHttpException if there is an unexpected HTTP error when communicating with Spotify
+     */
+    CachedResponse getAPIResponse(URI target, CachedResponse cached)
+    throws IOException, SpotifyClientException
+    {
+        final HttpResponse<InputStream> response = sendAuthorized(target, request -> {
+            if (cached != null) request.header("If-None-Match", cached.getTag());
+            return request.GET().build();
+        });
+        final int code = response.statusCode();
+        try (InputStream body = response.body()) {
+            if (cached != null && code == HttpURLConnection.HTTP_NOT_MODIFIED) return cached;
+            if (!isSuccess(code)) throw new SpotifyClientHttpException(code);
+            return new CachedResponse(response.headers().firstValue("ETag").orElse(null), body.readAllBytes());
+        }
+    }
+
+    /**
+     * Sends a GET request to Spotify without waiting for the response.  The access token is refreshed, if it has
+     * expired, before this returns.
+     *
+     * @param target URL of Spotify object
+     * @return future reader of JSON output from Spotify, which completes exceptionally with a
+     * <code>SpotifyClientHttpException</code> if there is an unexpected HTTP error
+     * @throws IOException            on I/O errors while refreshing the access token
+     * @throws SpotifyClientException if the access token could not be refreshed
+     */
+    CompletableFuture<BufferedReader> getAPIReaderAsync(URI target)
+    throws IOException, SpotifyClientException
+    {
+        return sendAuthorizedAsync(target, request -> request.GET().build())
+                .thenApply(response -> {
+                    try {
+                        return toReader(response);
+                    } catch (IOException | SpotifyClientHttpException e) {
+                        throw new CompletionException(e);
+                    }
+                });
     }
 
     BufferedReader getAPIReader(URI target, String method, String data)
     throws IOException, SpotifyClientException
     {
-        refreshAccessToken();
-        return getConnectionReader(target.toURL(), method, data, "application/json", true);
+        return toReader(sendAuthorized(target, withBody(method, data, "application/json")));
     }
 
     BufferedReader getAPIReader(URL target, String method, String data)
     throws IOException, SpotifyClientException
     {
-        refreshAccessToken();
-        return getConnectionReader(target, method, data, "application/json", true);
+        return getAPIReader(toUri(target), method, data);
     }
 
     /**
@@ -235,8 +524,8 @@ abstract class SpotifyHttpClient
     throws IOException, SpotifyClientHttpException, SpotifyAuthenticationException
     {
         SpotifyToken spotifyToken;
-        try (BufferedReader reader = getConnectionReader(SPOTIFY_TOKEN_URL, "POST", out,
-                "application/x-www-form-urlencoded", false)) {
+        try (BufferedReader reader = getConnectionReader(SPOTIFY_TOKEN_URI, "POST", out,
+                "application/x-www-form-urlencoded")) {
             spotifyToken = parseToken(reader);
         }
 
@@ -268,10 +557,34 @@ abstract class SpotifyHttpClient
         if (token == null) {
             throw new SpotifyClientStateException("No Spotify access token exists.");
         }
-        Instant expires = token.getExpires();
-        if (expires != null && Instant.now().isBefore(expires)) {
-            return;
+        synchronized (token) {
+            Instant expires = token.getExpires();
+            if (expires != null && Instant.now().isBefore(expires)) {
+                return;
+            }
+            refreshWithRefreshToken();
         }
+    }
+
+    /**
+     * Refreshes an access token which Spotify refused before it expired, unless another request has refreshed it
+     * since.
+     *
+     * @param refused authorization which was refused
+     */
+    private void refreshRefusedToken(String refused)
+    throws IOException, SpotifyClientException
+    {
+        synchronized (token) {
+            if (Objects.equals(refused, token.getAccessAuthorization())) {
+                refreshWithRefreshToken();
+            }
+        }
+    }
+
+    private void refreshWithRefreshToken()
+    throws IOException, SpotifyClientException
+    {
         refreshAccessToken("grant_type=refresh_token&refresh_token="
                 + URLEncoder.encode(token.getRefreshToken(), StandardCharsets.UTF_8)
                 + "&client_id=" + URLEncoder.encode(clientId, StandardCharsets.UTF_8));
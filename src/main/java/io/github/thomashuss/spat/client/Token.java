@@ -9,8 +9,9 @@ import java.time.Instant;
  */
 public final class Token
 {
-    private Instant expires;
-    private String accessAuthorization;
+    // read by requests on other threads while the token is refreshed
+    private volatile Instant expires;
+    private volatile String accessAuthorization;
     private String refreshToken;
 
     public void setExpires(Instant expires)
@@ -1,6 +1,7 @@
 package io.github.thomashuss.spat.gui;
 
 import io.github.thomashuss.spat.Spat;
+import io.github.thomashuss.spat.client.RefreshScheduler;
 import io.github.thomashuss.spat.client.SpotifyClient;
 import io.github.thomashuss.spat.library.Library;
 import io.github.thomashuss.spat.library.LibraryResource;
@@ -88,6 +89,7 @@ public class MainGUI
     private PreviewWorker previewWorker;
     private EditPushFrame pushFrame;
     private InternalFrameAdapter pushDoneListener;
+    private RefreshScheduler refreshScheduler;
 
     public MainGUI()
     {
@@ -161,8 +163,15 @@ public class MainGUI
     private void setLibrary(Library library)
     {
         statePcs.firePropertyChange(HAS_LIBRARY_KEY, this.library != null, library != null);
+        if (refreshScheduler != null) refreshScheduler.stop();
         client.setLibrary(this.library = library);
         editTracker.setLibrary(library);
+        if (library != null) {
+            refreshScheduler = new RefreshScheduler(client, library);
+            refreshScheduler.start();
+        } else {
+            refreshScheduler = null;
+        }
     }
 
     private void showLogin()
@@ -645,15 +654,20 @@ public class MainGUI
                 protected Void doInBackground()
                 throws IOException
                 {
-                    saveDataDefault();
+                    if (refreshScheduler != null) refreshScheduler.stop();
                     try {
-                        if (library != null) {
-                            library.close();
-                        }
+                        // a save which fails is reported, but the library is still closed
+                        saveDataDefault();
                     } finally {
                         try {
-                            Spat.preferences.flush();
-                        } catch (BackingStoreException ignored) {
+                            if (library != null) {
+                                library.close();
+                            }
+                        } finally {
+                            try {
+                                Spat.preferences.flush();
+                            } catch (BackingStoreException ignored) {
+                            }
                         }
                     }
                     return null;
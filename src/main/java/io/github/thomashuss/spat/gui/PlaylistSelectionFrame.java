@@ -1,5 +1,6 @@
 package io.github.thomashuss.spat.gui;
 
+import io.github.thomashuss.spat.client.APICollectionMutator;
 import io.github.thomashuss.spat.library.Playlist;
 
 import javax.swing.AbstractListModel;
@@ -15,6 +16,8 @@ import java.awt.BorderLayout;
 import java.awt.Container;
 import java.awt.Dimension;
 import java.awt.FlowLayout;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -38,6 +41,10 @@ class PlaylistSelectionFrame
         final JButton updateButton = new APIButton("Refresh");
         updateButton.addActionListener(actionEvent -> model.populate());
         buttonPane.add(updateButton);
+        final JButton syncButton = new APIButton("Sync changed");
+        syncButton.setToolTipText("Refresh, then download the tracks of playlists which changed on Spotify.");
+        syncButton.addActionListener(actionEvent -> model.syncChanged());
+        buttonPane.add(syncButton);
         final JButton removeButton = new JButton("Remove");
         removeButton.addActionListener(actionEvent -> removePlaylist(list.getSelectedIndex()));
         buttonPane.add(removeButton);
@@ -111,7 +118,23 @@ class PlaylistSelectionFrame
             if (!playlists.isEmpty())
                 fireIntervalRemoved(this, 0, playlists.size() - 1);
             updating = true;
-            new PlaylistDownloaderWorker().execute();
+            new PlaylistDownloaderWorker(main.client::updateMyPlaylists, List.of(), List.of()).execute();
+        }
+
+        private void syncChanged()
+        {
+            if (!playlists.isEmpty())
+                fireIntervalRemoved(this, 0, playlists.size() - 1);
+            updating = true;
+            final Set<Playlist> edited = new HashSet<>();
+            for (Playlist p : playlists) {
+                if (main.editTracker.hasChangesFor(p)) edited.add(p);
+            }
+            final List<Playlist> synced = new ArrayList<>();
+            final List<Playlist> skipped = new ArrayList<>();
+            new PlaylistDownloaderWorker(progressTracker ->
+                    main.client.syncChangedPlaylists(progressTracker, edited, synced, skipped), synced, skipped)
+                    .execute();
         }
 
         private void updateOtherModel(Playlist p)
@@ -132,9 +155,20 @@ class PlaylistSelectionFrame
         private class PlaylistDownloaderWorker
                 extends APICollectionMutatorWorker<Playlist>
         {
-            public PlaylistDownloaderWorker()
+            private final List<Playlist> synced;
+            private final List<Playlist> skipped;
+
+            /**
+             * @param synced  playlists whose tracks the task downloads, filled in by the time it succeeds
+             * @param skipped changed playlists which the task leaves alone because they have edits, filled in by the
+             *                time it succeeds
+             */
+            public PlaylistDownloaderWorker(APICollectionMutator<Playlist> task, List<Playlist> synced,
+                                            List<Playlist> skipped)
             {
-                super(PlaylistSelectionFrame.this.main, PlaylistSelectionFrame.this.main.client::updateMyPlaylists);
+                super(PlaylistSelectionFrame.this.main, task);
+                this.synced = synced;
+                this.skipped = skipped;
             }
 
             @Override
@@ -149,6 +183,18 @@ class PlaylistSelectionFrame
                     frame = main.desktopPane.getFrameForResource(d);
                     if (frame != null) frame.doDefaultCloseAction();
                 }
+                for (Playlist s : synced) {
+                    updateOtherModel(s);
+                }
+                if (!skipped.isEmpty()) {
+                    final StringBuilder message = new StringBuilder(
+                            "These playlists changed on Spotify, but were not downloaded because they have edits "
+                                    + "which have not been pushed:\n");
+                    for (Playlist s : skipped) message.append('\n').append(s.getName());
+                    message.append("\n\nPush or undo the edits, then sync again.");
+                    JOptionPane.showInternalMessageDialog(PlaylistSelectionFrame.this, message.toString(),
+                            "Sync changed", JOptionPane.WARNING_MESSAGE);
+                }
             }
         }
     }
@@ -2,8 +2,7 @@ package io.github.thomashuss.spat.gui;
 
 import io.github.thomashuss.spat.library.LibraryResource;
 import io.github.thomashuss.spat.library.Playlist;
-import io.github.thomashuss.spat.library.SavedResourceCollection;
-import io.github.thomashuss.spat.library.Track;
+import io.github.thomashuss.spat.library.SavedTrackCollection;
 
 import javax.swing.AbstractAction;
 import javax.swing.ActionMap;
@@ -34,14 +33,14 @@ class SavedTrackCollectionFrame
     private static final JFileChooser CHOOSER = new JFileChooser();
     final SavedTrackTableModel model;
     private final JTable table;
-    private final SavedResourceCollection<Track> collection;
+    private final SavedTrackCollection collection;
     private static final Dimension SIZE = new Dimension(600, 300);
     private static final Dimension TABLE_DIMENSION = new Dimension(500, 70);
 
-    public SavedTrackCollectionFrame(MainGUI main, SavedResourceCollection<Track> collection)
+    public SavedTrackCollectionFrame(MainGUI main, SavedTrackCollection collection)
     {
         super(main, collection instanceof Playlist ? collection.getName() : "Saved Tracks");
-        main.library.populateSavedResources(collection);
+        main.library.populateSavedResourcesLazily(collection);
         this.collection = collection;
         if (collection instanceof Playlist p) {
             model = new PlaylistTrackTableModel(main, p);
@@ -3,6 +3,7 @@ package io.github.thomashuss.spat.gui;
 import io.github.thomashuss.spat.library.Artist;
 import io.github.thomashuss.spat.library.SavedTrackCollection;
 import io.github.thomashuss.spat.library.Track;
+import io.github.thomashuss.spat.library.TrackRow;
 import io.github.thomashuss.spat.tracker.Edit;
 import io.github.thomashuss.spat.tracker.IllegalEditException;
 import io.github.thomashuss.spat.tracker.ResourceFilter;
@@ -17,6 +18,7 @@ import javax.swing.JComponent;
 import javax.swing.JOptionPane;
 import javax.swing.JTable;
 import javax.swing.TransferHandler;
+import javax.swing.event.TableModelEvent;
 import java.awt.datatransfer.DataFlavor;
 import java.awt.datatransfer.Transferable;
 import java.awt.datatransfer.UnsupportedFlavorException;
@@ -34,6 +36,11 @@ class SavedTrackTableModel
     private static final DataFlavor TRACK_FLAVOR =
             new DataFlavor(DataFlavor.javaJVMLocalObjectMimeType, "Track Range");
     private static final DataFlavor[] FLAVORS = {TRACK_FLAVOR};
+    /**
+     * Filled in from the library for one row at a time, so that rendering a row does not read its track.
+     */
+    private final TrackRow trackRow = new TrackRow();
+    private String trackRowKey;
 
     public SavedTrackTableModel(MainGUI main, SavedTrackCollection collection)
     {
@@ -88,9 +95,41 @@ class SavedTrackTableModel
         return COL_NAMES.length;
     }
 
+    /**
+     * Moves the flyweight row to the track at <code>row</code>, unless it is already there.
+     *
+     * @return the row, or null if the track could not be found
+     */
+    private TrackRow trackRowAt(int row)
+    {
+        final String key = get(row).getKey();
+        if (key == null) return null;
+        if (!key.equals(trackRowKey)) {
+            trackRowKey = main.library.readTrackRow(key, trackRow) ? key : null;
+        }
+        return trackRowKey == null ? null : trackRow;
+    }
+
+    @Override
+    public void fireTableChanged(TableModelEvent e)
+    {
+        trackRowKey = null;
+        super.fireTableChanged(e);
+    }
+
     @Override
     public Object getValueAt(int row, int col)
     {
+        if (col <= 2) {
+            final TrackRow r = trackRowAt(row);
+            if (r != null) {
+                return switch (col) {
+                    case 1 -> r.getArtistNames();
+                    case 2 -> r.getAlbumName();
+                    default -> r.getName();
+                };
+            }
+        }
         return switch (col) {
             case 1 -> {
                 Artist[] artists = get(row).getResource().getArtists();
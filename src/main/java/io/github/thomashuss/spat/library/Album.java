@@ -34,6 +34,10 @@ public class Album
     private transient Genre[] genres;
     @JsonProperty(access = JsonProperty.Access.READ_ONLY)
     private URL[] images;
+    private transient LazyResource<Label> lazyLabel;
+    private transient LazyResourceArray<Artist> lazyArtists;
+    private transient LazyResourceArray<Track> lazyTracks;
+    private transient LazyResourceArray<Genre> lazyGenres;
 
     Album(String id)
     {
@@ -42,46 +46,98 @@ public class Album
 
     public Artist[] getArtists()
     {
-        return artists;
+        final LazyResourceArray<Artist> l = lazyArtists;
+        return l == null ? artists : l.get();
     }
 
     public void setArtists(Artist[] artists)
     {
         if (artists == null) return;
         this.artists = artists;
+        lazyArtists = null;
+    }
+
+    void setArtists(LazyResourceArray<Artist> artists)
+    {
+        lazyArtists = artists;
+    }
+
+    String[] getArtistKeys()
+    {
+        final LazyResourceArray<Artist> l = lazyArtists;
+        return l == null ? LazyResourceArray.keysOf(artists) : l.keys();
     }
 
     public Track[] getTracks()
     {
-        return tracks;
+        final LazyResourceArray<Track> l = lazyTracks;
+        return l == null ? tracks : l.get();
     }
 
     public void setTracks(Track[] tracks)
     {
         if (tracks == null) return;
         this.tracks = tracks;
+        lazyTracks = null;
+    }
+
+    void setTracks(LazyResourceArray<Track> tracks)
+    {
+        lazyTracks = tracks;
+    }
+
+    String[] getTrackKeys()
+    {
+        final LazyResourceArray<Track> l = lazyTracks;
+        return l == null ? LazyResourceArray.keysOf(tracks) : l.keys();
     }
 
     public Genre[] getGenres()
     {
-        return genres;
+        final LazyResourceArray<Genre> l = lazyGenres;
+        return l == null ? genres : l.get();
     }
 
     public void setGenres(Genre[] genres)
     {
         if (genres == null) return;
         this.genres = genres;
+        lazyGenres = null;
+    }
+
+    void setGenres(LazyResourceArray<Genre> genres)
+    {
+        lazyGenres = genres;
+    }
+
+    String[] getGenreKeys()
+    {
+        final LazyResourceArray<Genre> l = lazyGenres;
+        return l == null ? LazyResourceArray.keysOf(genres) : l.keys();
     }
 
     public Label getLabel()
     {
-        return label;
+        final LazyResource<Label> l = lazyLabel;
+        return l == null ? label : l.get();
     }
 
     public void setLabel(Label label)
     {
         if (label == null) return;
         this.label = label;
+        lazyLabel = null;
+    }
+
+    void setLabel(LazyResource<Label> label)
+    {
+        lazyLabel = label;
+    }
+
+    String getLabelKey()
+    {
+        final LazyResource<Label> l = lazyLabel;
+        return l == null ? LazyResource.keyOf(label) : l.key();
     }
 
     public URL[] getImages()
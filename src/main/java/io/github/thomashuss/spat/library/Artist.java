@@ -18,6 +18,7 @@ public class Artist
     private int followers;
     @JsonProperty(access = JsonProperty.Access.READ_ONLY)
     private URL[] images;
+    private transient LazyResourceArray<Genre> lazyGenres;
 
     Artist(String id)
     {
@@ -26,12 +27,25 @@ public class Artist
 
     public Genre[] getGenres()
     {
-        return genres;
+        final LazyResourceArray<Genre> l = lazyGenres;
+        return l == null ? genres : l.get();
     }
 
     public void setGenres(Genre[] genres)
     {
         this.genres = genres;
+        lazyGenres = null;
+    }
+
+    void setGenres(LazyResourceArray<Genre> genres)
+    {
+        lazyGenres = genres;
+    }
+
+    String[] getGenreKeys()
+    {
+        final LazyResourceArray<Genre> l = lazyGenres;
+        return l == null ? LazyResourceArray.keysOf(genres) : l.keys();
     }
 
     public byte getPopularity()
@@ -0,0 +1,146 @@
+package io.github.thomashuss.spat.library;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The <code>AudioFeatures</code> of every track in a library, as of when the table was read, held in one
+ * primitive array per feature so that they can be filtered without touching the tracks.  Rows are in key order.
+ */
+public final class AudioFeatureTable
+{
+    static final int FLOAT_COLUMNS = Column.values().length;
+
+    /**
+     * The features stored as floats.
+     */
+    public enum Column
+    {
+        ACOUSTICNESS,
+        DANCEABILITY,
+        ENERGY,
+        INSTRUMENTALNESS,
+        LIVENESS,
+        LOUDNESS,
+        SPEECHINESS,
+        TEMPO,
+        VALENCE
+    }
+
+    private final byte[][] trackKeys;
+    private final float[][] floats;
+    private final byte[] keys;
+    private final boolean[] major;
+    private final byte[] timeSignatures;
+
+    AudioFeatureTable(byte[][] trackKeys, float[][] floats, byte[] keys, boolean[] major, byte[] timeSignatures)
+    {
+        this.trackKeys = trackKeys;
+        this.floats = floats;
+        this.keys = keys;
+        this.major = major;
+        this.timeSignatures = timeSignatures;
+    }
+
+    public int size()
+    {
+        return trackKeys.length;
+    }
+
+    /**
+     * @param row row of the table
+     * @return ID of the track in that row
+     */
+    public String getTrackId(int row)
+    {
+        return KeyCodec.decode(ByteBuffer.wrap(trackKeys[row]));
+    }
+
+    /**
+     * @param rows rows of the table
+     * @return IDs of the tracks in those rows, in the same order
+     */
+    public List<String> getTrackIds(int[] rows)
+    {
+        final List<String> ret = new ArrayList<>(rows.length);
+        for (int row : rows) {
+            ret.add(getTrackId(row));
+        }
+        return ret;
+    }
+
+    /**
+     * Gives direct access to a column, for scans which the select methods do not cover.  The array must not be
+     * modified.
+     *
+     * @param column feature
+     * @return the feature of every row
+     */
+    public float[] getColumn(Column column)
+    {
+        return floats[column.ordinal()];
+    }
+
+    public float get(Column column, int row)
+    {
+        return floats[column.ordinal()][row];
+    }
+
+    public byte getKey(int row)
+    {
+        return keys[row];
+    }
+
+    public boolean isMajor(int row)
+    {
+        return major[row];
+    }
+
+    public byte getTimeSignature(int row)
+    {
+        return timeSignatures[row];
+    }
+
+    /**
+     * Finds the rows in which a feature lies in a range.
+     *
+     * @param column feature to test
+     * @param min    least value, inclusive
+     * @param max    greatest value, inclusive
+     * @return matching rows, in ascending order
+     */
+    public int[] select(Column column, float min, float max)
+    {
+        final float[] values = floats[column.ordinal()];
+        final int[] ret = new int[values.length];
+        int n = 0;
+        for (int row = 0; row < values.length; row++) {
+            final float v = values[row];
+            if (v >= min && v <= max) ret[n++] = row;
+        }
+        return Arrays.copyOf(ret, n);
+    }
+
+    /**
+     * Narrows a selection to the rows in which a feature lies in a range, so that criteria can be chained.
+     *
+     * @param rows   rows to test
+     * @param column feature to test
+     * @param min    least value, inclusive
+     * @param max    greatest value, inclusive
+     * @return the rows of <code>rows</code> which match, in the same order
+     */
+    public int[] select(int[] rows, Column column, float min, float max)
+    {
+        final float[] values = floats[column.ordinal()];
+        final int[] ret = new int[rows.length];
+        int n = 0;
+        for (int row : rows) {
+            final float v = values[row];
+            if (v >= min && v <= max) ret[n++] = row;
+        }
+        return Arrays.copyOf(ret, n);
+    }
+}
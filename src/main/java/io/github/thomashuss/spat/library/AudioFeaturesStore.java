@@ -0,0 +1,113 @@
+package io.github.thomashuss.spat.library;
+
+import org.lmdbjava.CursorIterable;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.DbiFlags;
+import org.lmdbjava.Env;
+import org.lmdbjava.Txn;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copies the <code>AudioFeatures</code> of every track into a DB of fixed-width records, so that they can be
+ * scanned without deserializing the tracks.
+ */
+/*
+ * A record is the nine float features in the order of AudioFeatureTable.Column, then the key, the mode (1 for
+ * major) and the time signature as one byte each.  It is keyed like the track.
+ */
+final class AudioFeaturesStore
+        implements SecondaryIndex<Track>, AutoCloseable
+{
+    static final int RECORD_SIZE = AudioFeatureTable.FLOAT_COLUMNS * Float.BYTES + 3;
+
+    private final Dbi<ByteBuffer> db;
+    private final ByteBuffer keyBuf;
+    private final ByteBuffer valBuf;
+
+    AudioFeaturesStore(Env<ByteBuffer> env)
+    {
+        db = env.openDbi("audioFeatures", DbiFlags.MDB_CREATE);
+        keyBuf = ByteBuffer.allocateDirect(env.getMaxKeySize());
+        valBuf = ByteBuffer.allocateDirect(RECORD_SIZE);
+    }
+
+    @Override
+    public void put(Txn<ByteBuffer> txn, Track track)
+    {
+        final AudioFeatures f = track.getFeatures();
+        if (f == null) {
+            remove(txn, track.getKey());
+            return;
+        }
+        valBuf.clear()
+                .putFloat(f.getAcousticness())
+                .putFloat(f.getDanceability())
+                .putFloat(f.getEnergy())
+                .putFloat(f.getInstrumentalness())
+                .putFloat(f.getLiveness())
+                .putFloat(f.getLoudness())
+                .putFloat(f.getSpeechiness())
+                .putFloat(f.getTempo())
+                .putFloat(f.getValence())
+                .put(f.getKey())
+                .put((byte) (f.isMajor() ? 1 : 0))
+                .put(f.getTimeSignature())
+                .flip();
+        db.put(txn, KeyCodec.encode(keyBuf.clear(), track.getKey()).flip(), valBuf);
+    }
+
+    @Override
+    public void remove(Txn<ByteBuffer> txn, String key)
+    {
+        db.delete(txn, KeyCodec.encode(keyBuf.clear(), key).flip());
+    }
+
+    void clear(Txn<ByteBuffer> txn)
+    {
+        db.drop(txn);
+    }
+
+    /**
+     * Reads every record into columns.
+     *
+     * @param txn read transaction
+     * @return the features of every track which has them
+     */
+    AudioFeatureTable scan(Txn<ByteBuffer> txn)
+    {
+        final int rows = (int) db.stat(txn).entries;
+        final List<byte[]> keys = new ArrayList<>(rows);
+        final float[][] floats = new float[AudioFeatureTable.FLOAT_COLUMNS][rows];
+        final byte[] musicalKeys = new byte[rows];
+        final boolean[] major = new boolean[rows];
+        final byte[] timeSignatures = new byte[rows];
+        int row = 0;
+        try (CursorIterable<ByteBuffer> it = db.iterate(txn)) {
+            for (CursorIterable.KeyVal<ByteBuffer> kv : it) {
+                final ByteBuffer k = kv.key();
+                final byte[] key = new byte[k.remaining()];
+                k.get(k.position(), key);
+                keys.add(key);
+                final ByteBuffer v = kv.val();
+                int pos = v.position();
+                for (int c = 0; c < AudioFeatureTable.FLOAT_COLUMNS; c++, pos += Float.BYTES) {
+                    floats[c][row] = v.getFloat(pos);
+                }
+                musicalKeys[row] = v.get(pos);
+                major[row] = v.get(pos + 1) != 0;
+                timeSignatures[row] = v.get(pos + 2);
+                row++;
+            }
+        }
+        return new AudioFeatureTable(keys.toArray(new byte[0][]), floats, musicalKeys, major, timeSignatures);
+    }
+
+    @Override
+    public void close()
+    {
+        db.close();
+    }
+}
@@ -0,0 +1,91 @@
+package io.github.thomashuss.spat.library;
+
+/**
+ * Snapshot of the counters of one resource cache in a <code>Library</code>.
+ */
+public final class CacheStats
+{
+    private final long hits;
+    private final long weakHits;
+    private final long misses;
+    private final long evictions;
+    private final int size;
+    private final int capacity;
+
+    CacheStats(long hits, long weakHits, long misses, long evictions, int size, int capacity)
+    {
+        this.hits = hits;
+        this.weakHits = weakHits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.size = size;
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return number of lookups answered by either cache level
+     */
+    public long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * @return number of lookups answered by the weak level after missing the strong one
+     */
+    public long getWeakHits()
+    {
+        return weakHits;
+    }
+
+    /**
+     * @return number of lookups which had to go to the database
+     */
+    public long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * @return number of resources dropped from the strong level to make room
+     */
+    public long getEvictions()
+    {
+        return evictions;
+    }
+
+    /**
+     * @return number of resources currently held by the strong level
+     */
+    public int getSize()
+    {
+        return size;
+    }
+
+    /**
+     * @return maximum number of resources held by the strong level
+     */
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    public double getHitRatio()
+    {
+        final long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public double getWeakHitRatio()
+    {
+        final long total = weakHits + misses;
+        return total == 0 ? 0 : (double) weakHits / total;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "hits=" + hits + " (weak " + weakHits + "), misses=" + misses + ", evictions=" + evictions
+                + ", size=" + size + '/' + capacity;
+    }
+}
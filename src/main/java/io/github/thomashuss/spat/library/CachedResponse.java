@@ -0,0 +1,37 @@
+package io.github.thomashuss.spat.library;
+
+/**
+ * Body of a response from Spotify along with the entity tag which identifies it, so that it can be asked for again
+ * only if it has changed.
+ */
+public final class CachedResponse
+{
+    private final String tag;
+    private final byte[] body;
+
+    /**
+     * @param tag  entity tag of the response, as sent in its ETag header
+     * @param body body of the response
+     */
+    public CachedResponse(String tag, byte[] body)
+    {
+        this.tag = tag;
+        this.body = body;
+    }
+
+    /**
+     * @return entity tag of the response, as sent in its ETag header
+     */
+    public String getTag()
+    {
+        return tag;
+    }
+
+    /**
+     * @return body of the response
+     */
+    public byte[] getBody()
+    {
+        return body;
+    }
+}
@@ -0,0 +1,91 @@
+package io.github.thomashuss.spat.library;
+
+import org.lmdbjava.Cursor;
+import org.lmdbjava.CursorIterable;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.DbiFlags;
+import org.lmdbjava.Env;
+import org.lmdbjava.Txn;
+
+import java.nio.ByteBuffer;
+import java.util.function.BiConsumer;
+
+/**
+ * Stores the edits which have been made locally but not yet pushed, so that they survive a restart.
+ */
+/*
+ * Records are keyed by the sequence number of the edit, big-endian so that lmdb's order is the order the edits were
+ * made in.  A record is whatever the edit tracker wrote; the library only stores it.  Each record is written in the
+ * same transaction as the contents of the collection it edited, so the stored contents always reflect exactly the
+ * journaled edits.
+ */
+final class EditJournal
+        implements AutoCloseable
+{
+    private final Dbi<ByteBuffer> db;
+    private final ByteBuffer keyBuf;
+    private ByteBuffer valBuf = ByteBuffer.allocateDirect(256);
+
+    EditJournal(Env<ByteBuffer> env)
+    {
+        db = env.openDbi("editJournal", DbiFlags.MDB_CREATE);
+        keyBuf = ByteBuffer.allocateDirect(Long.BYTES);
+    }
+
+    void put(Txn<ByteBuffer> txn, long seq, byte[] record)
+    {
+        if (valBuf.capacity() < record.length) {
+            valBuf = ByteBuffer.allocateDirect(Library.roundBufSize(record.length));
+        }
+        db.put(txn, keyBuf.clear().putLong(seq).flip(), valBuf.clear().put(record).flip());
+    }
+
+    void remove(Txn<ByteBuffer> txn, long seq)
+    {
+        db.delete(txn, keyBuf.clear().putLong(seq).flip());
+    }
+
+    /**
+     * Removes every record older than <code>seq</code>.
+     *
+     * @param txn write transaction
+     * @param seq sequence number of the oldest record to keep
+     */
+    void removeBefore(Txn<ByteBuffer> txn, long seq)
+    {
+        try (Cursor<ByteBuffer> c = db.openCursor(txn)) {
+            while (c.first() && c.key().getLong(c.key().position()) < seq) {
+                c.delete();
+            }
+        }
+    }
+
+    void clear(Txn<ByteBuffer> txn)
+    {
+        db.drop(txn);
+    }
+
+    /**
+     * Reads every record, oldest first.
+     *
+     * @param txn  read transaction
+     * @param func accepts the sequence number and a copy of the record
+     */
+    void forEach(Txn<ByteBuffer> txn, BiConsumer<Long, byte[]> func)
+    {
+        try (CursorIterable<ByteBuffer> it = db.iterate(txn)) {
+            for (CursorIterable.KeyVal<ByteBuffer> kv : it) {
+                final ByteBuffer val = kv.val();
+                final byte[] record = new byte[val.remaining()];
+                val.get(val.position(), record);
+                func.accept(kv.key().getLong(kv.key().position()), record);
+            }
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        db.close();
+    }
+}
@@ -0,0 +1,164 @@
+package io.github.thomashuss.spat.library;
+
+import org.lmdbjava.Cursor;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.DbiFlags;
+import org.lmdbjava.Env;
+import org.lmdbjava.GetOp;
+import org.lmdbjava.Txn;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records when each track, album and artist was last fetched from Spotify, so that the stalest can be refreshed
+ * first.
+ */
+/*
+ * fetched maps a type tag and resource key to the time of the last fetch, in seconds since the epoch as an unsigned
+ * 4-byte integer.  byTime holds the same entries as keys made of the type tag, the time and the resource key, with
+ * empty values, so that lmdb's order is oldest first within each type.  A resource written to the library without
+ * having been fetched, as every resource was before fetches were recorded, is given time 0 until it is fetched.
+ */
+final class FetchTimes
+        implements AutoCloseable
+{
+    /**
+     * Time of a resource which has never been recorded as fetched.
+     */
+    static final long UNKNOWN = 0;
+
+    private final Dbi<ByteBuffer> fetchedDb;
+    private final Dbi<ByteBuffer> byTimeDb;
+    private final ByteBuffer keyBuf;
+    private final ByteBuffer timeKeyBuf;
+    private final ByteBuffer valBuf = ByteBuffer.allocateDirect(Integer.BYTES);
+    private final ThreadLocal<ByteBuffer> readKeyBuf;
+
+    FetchTimes(Env<ByteBuffer> env)
+    {
+        fetchedDb = env.openDbi("fetched", DbiFlags.MDB_CREATE);
+        byTimeDb = env.openDbi("fetchedByTime", DbiFlags.MDB_CREATE);
+        final int maxKeySize = env.getMaxKeySize();
+        keyBuf = ByteBuffer.allocateDirect(maxKeySize);
+        timeKeyBuf = ByteBuffer.allocateDirect(maxKeySize);
+        readKeyBuf = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(maxKeySize));
+    }
+
+    private static ByteBuffer encodeNode(ByteBuffer buf, char type, String key)
+    {
+        buf.clear().put((byte) type);
+        return KeyCodec.encode(buf, key).flip();
+    }
+
+    private static ByteBuffer encodeTimeKey(ByteBuffer buf, char type, long time, String key)
+    {
+        buf.clear().put((byte) type).putInt((int) time);
+        return KeyCodec.encode(buf, key).flip();
+    }
+
+    /**
+     * Creates the index of one type of resource, which gives every resource written to the library a time.
+     *
+     * @param type type tag, as in <code>ReferenceIndex</code>
+     * @return index to attach to the DB of that type
+     */
+    <T extends LibraryResource> SecondaryIndex<T> of(final char type)
+    {
+        return new SecondaryIndex<>()
+        {
+            @Override
+            public void put(Txn<ByteBuffer> txn, T resource)
+            {
+                if (fetchedDb.get(txn, encodeNode(keyBuf, type, resource.getKey())) == null) {
+                    set(txn, type, resource.getKey(), UNKNOWN);
+                }
+            }
+
+            @Override
+            public void remove(Txn<ByteBuffer> txn, String key)
+            {
+                final ByteBuffer old = fetchedDb.get(txn, encodeNode(keyBuf, type, key));
+                if (old != null) {
+                    byTimeDb.delete(txn, encodeTimeKey(timeKeyBuf, type, old.getInt(old.position()), key));
+                    fetchedDb.delete(txn, keyBuf);
+                }
+            }
+        };
+    }
+
+    /**
+     * Records when a resource was fetched.
+     *
+     * @param txn  write transaction
+     * @param type type tag, as in <code>ReferenceIndex</code>
+     * @param key  key of the resource
+     * @param time seconds since the epoch
+     */
+    void set(Txn<ByteBuffer> txn, char type, String key, long time)
+    {
+        final ByteBuffer old = fetchedDb.get(txn, encodeNode(keyBuf, type, key));
+        if (old != null) {
+            final long oldTime = Integer.toUnsignedLong(old.getInt(old.position()));
+            if (oldTime == time) return;
+            byTimeDb.delete(txn, encodeTimeKey(timeKeyBuf, type, oldTime, key));
+        }
+        fetchedDb.put(txn, keyBuf, valBuf.clear().putInt((int) time).flip());
+        byTimeDb.put(txn, encodeTimeKey(timeKeyBuf, type, time, key), valBuf.clear().flip());
+    }
+
+    /**
+     * Looks up when a resource was last fetched.
+     *
+     * @param txn  read transaction
+     * @param type type tag, as in <code>ReferenceIndex</code>
+     * @param key  key of the resource
+     * @return seconds since the epoch, <code>UNKNOWN</code> if the resource was written without being fetched, or
+     * -1 if the resource is not in the library
+     */
+    long get(Txn<ByteBuffer> txn, char type, String key)
+    {
+        final ByteBuffer time = fetchedDb.get(txn, encodeNode(readKeyBuf.get(), type, key));
+        return time == null ? -1 : Integer.toUnsignedLong(time.getInt(time.position()));
+    }
+
+    /**
+     * Finds the resources of a type which were fetched longest ago.
+     *
+     * @param txn    read transaction
+     * @param type   type tag, as in <code>ReferenceIndex</code>
+     * @param before only resources fetched before this time, in seconds since the epoch, are returned
+     * @param limit  greatest number of keys to return
+     * @return keys of the resources, oldest fetch first
+     */
+    List<String> stalest(Txn<ByteBuffer> txn, char type, long before, int limit)
+    {
+        final List<String> ret = new ArrayList<>();
+        final ByteBuffer k = readKeyBuf.get().clear().put((byte) type).flip();
+        try (Cursor<ByteBuffer> c = byTimeDb.openCursor(txn)) {
+            if (!c.get(k, GetOp.MDB_SET_RANGE)) return ret;
+            do {
+                final ByteBuffer key = c.key();
+                final int pos = key.position();
+                if (key.get(pos) != (byte) type
+                        || Integer.toUnsignedLong(key.getInt(pos + 1)) >= before) break;
+                ret.add(KeyCodec.decode(key.duplicate().position(pos + 1 + Integer.BYTES)));
+            } while (ret.size() < limit && c.next());
+        }
+        return ret;
+    }
+
+    void clear(Txn<ByteBuffer> txn)
+    {
+        fetchedDb.drop(txn);
+        byTimeDb.drop(txn);
+    }
+
+    @Override
+    public void close()
+    {
+        fetchedDb.close();
+        byTimeDb.close();
+    }
+}
@@ -0,0 +1,89 @@
+package io.github.thomashuss.spat.library;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Commits modified resources in the background, so that they reach the database soon after they are marked rather
+ * than when the library is next saved.
+ */
+/*
+ * The flusher sleeps until the interval has passed since its last flush, or until it is woken because enough saves
+ * are pending.  It then commits one small batch at a time, so a thread marking a resource modified waits for at most
+ * one batch rather than for the whole backlog.
+ */
+final class Flusher
+        implements Runnable
+{
+    private final BooleanSupplier flushBatch;
+    private final long intervalNanos;
+    private final Thread thread;
+    private volatile boolean stopped;
+
+    /**
+     * @param name       name of the flusher thread
+     * @param flushBatch commits one batch of pending saves and reports whether any remain
+     * @param interval   longest time, in milliseconds, that a modified resource waits to be committed
+     */
+    Flusher(String name, BooleanSupplier flushBatch, long interval)
+    {
+        this.flushBatch = flushBatch;
+        intervalNanos = TimeUnit.MILLISECONDS.toNanos(interval);
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    void start()
+    {
+        thread.start();
+    }
+
+    /**
+     * Asks the flusher to flush now.  Never blocks.
+     */
+    void wake()
+    {
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Stops the flusher and waits for it to finish the batch it is committing, if any.  Must not be called while
+     * synchronized on the lmdb env.
+     */
+    void stop()
+    {
+        stopped = true;
+        wake();
+        boolean interrupted = false;
+        for (; ; ) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    @Override
+    public void run()
+    {
+        long deadline = System.nanoTime() + intervalNanos;
+        while (!stopped) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining > 0) {
+                // returns early when woken, or spuriously; either way the pending saves are worth committing
+                LockSupport.parkNanos(this, remaining);
+                if (stopped) break;
+            }
+            try {
+                while (!stopped && flushBatch.getAsBoolean()) ;
+            } catch (RuntimeException e) {
+                System.err.println("WARNING: background save failed: " + e);
+            }
+            deadline = System.nanoTime() + intervalNanos;
+        }
+    }
+}
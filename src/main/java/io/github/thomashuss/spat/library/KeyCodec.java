@@ -0,0 +1,234 @@
+package io.github.thomashuss.spat.library;
+
+import org.apache.fury.memory.MemoryBuffer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes resource keys for storage.  Spotify IDs, which are 22 base62 digits, are packed into 16 bytes; any other
+ * key (such as a genre or label name) is stored as a string.
+ */
+/*
+ * DB keys carry no tag, so they are told apart by length: exactly 16 bytes is an ID.  A string whose UTF-8 form is
+ * 0 or 16 bytes long is padded with a NUL so that it is neither empty nor mistaken for an ID.
+ *
+ * Keys within values are tagged.  A field is a tag followed by the key; an array is its length, then (if not empty)
+ * a tag which applies to every element, so that an array of IDs has fixed-width elements.
+ */
+final class KeyCodec
+{
+    static final int ID_SIZE = 16;
+    private static final int ID_LENGTH = 22;
+    private static final String DIGITS = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+    private static final long LIMB_MASK = 0xFFFFFFFFL;
+    private static final byte NULL_TAG = 0;
+    private static final byte ID_TAG = 1;
+    private static final byte STRING_TAG = 2;
+
+    private KeyCodec()
+    {
+    }
+
+    private static int digitOf(char c)
+    {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'a' && c <= 'z') return c - 'a' + 10;
+        if (c >= 'A' && c <= 'Z') return c - 'A' + 36;
+        return -1;
+    }
+
+    /**
+     * Converts a key to the 128-bit number it represents, as four 32-bit limbs, most significant first.
+     *
+     * @param key  key to convert
+     * @param out  array of four limbs to fill
+     * @return false if the key is not a canonical Spotify ID
+     */
+    private static boolean toLimbs(String key, long[] out)
+    {
+        if (key.length() != ID_LENGTH) return false;
+        long l0 = 0, l1 = 0, l2 = 0, l3 = 0;
+        for (int i = 0; i < ID_LENGTH; i++) {
+            final int d = digitOf(key.charAt(i));
+            if (d < 0) return false;
+            l3 = l3 * 62 + d;
+            l2 = l2 * 62 + (l3 >>> 32);
+            l3 &= LIMB_MASK;
+            l1 = l1 * 62 + (l2 >>> 32);
+            l2 &= LIMB_MASK;
+            l0 = l0 * 62 + (l1 >>> 32);
+            l1 &= LIMB_MASK;
+            if (l0 >>> 32 != 0) return false;
+        }
+        out[0] = l0;
+        out[1] = l1;
+        out[2] = l2;
+        out[3] = l3;
+        return true;
+    }
+
+    private static String fromLimbs(long l0, long l1, long l2, long l3)
+    {
+        final char[] ret = new char[ID_LENGTH];
+        long r;
+        for (int i = ID_LENGTH - 1; i >= 0; i--) {
+            r = l0 % 62;
+            l0 /= 62;
+            l1 |= r << 32;
+            r = l1 % 62;
+            l1 /= 62;
+            l2 |= r << 32;
+            r = l2 % 62;
+            l2 /= 62;
+            l3 |= r << 32;
+            ret[i] = DIGITS.charAt((int) (l3 % 62));
+            l3 /= 62;
+        }
+        return new String(ret);
+    }
+
+    static boolean isId(String key)
+    {
+        return toLimbs(key, new long[4]);
+    }
+
+    /**
+     * Writes a DB key at the position of <code>buf</code>.
+     *
+     * @param buf buffer to write to
+     * @param key key to write
+     * @return <code>buf</code>
+     */
+    static ByteBuffer encode(ByteBuffer buf, String key)
+    {
+        final long[] limbs = new long[4];
+        if (toLimbs(key, limbs)) {
+            for (long l : limbs) buf.putInt((int) l);
+        } else {
+            final byte[] b = key.getBytes(StandardCharsets.UTF_8);
+            buf.put(b);
+            if (b.length == 0 || b.length == ID_SIZE) buf.put((byte) 0);
+        }
+        return buf;
+    }
+
+    /**
+     * Reads a DB key from the remaining bytes of <code>buf</code>, without moving its position.
+     *
+     * @param buf buffer holding the key
+     * @return key
+     */
+    static String decode(ByteBuffer buf)
+    {
+        final int pos = buf.position();
+        int len = buf.remaining();
+        if (len == ID_SIZE) {
+            return fromLimbs(buf.getInt(pos) & LIMB_MASK, buf.getInt(pos + 4) & LIMB_MASK,
+                    buf.getInt(pos + 8) & LIMB_MASK, buf.getInt(pos + 12) & LIMB_MASK);
+        }
+        if ((len == 1 || len == ID_SIZE + 1) && buf.get(pos + len - 1) == 0) len--;
+        final byte[] b = new byte[len];
+        buf.get(pos, b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static void writeId(MemoryBuffer buffer, long[] limbs)
+    {
+        for (long l : limbs) buffer.writeInt32((int) l);
+    }
+
+    private static String readId(MemoryBuffer buffer)
+    {
+        return fromLimbs(buffer.readInt32() & LIMB_MASK, buffer.readInt32() & LIMB_MASK,
+                buffer.readInt32() & LIMB_MASK, buffer.readInt32() & LIMB_MASK);
+    }
+
+    private static void writeString(MemoryBuffer buffer, String s)
+    {
+        final byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        buffer.writeVarUint32(b.length);
+        buffer.writeBytes(b);
+    }
+
+    private static String readString(MemoryBuffer buffer)
+    {
+        return new String(buffer.readBytes(buffer.readVarUint32()), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a key, which may be null, into a value.
+     *
+     * @param buffer buffer to write to
+     * @param key    key to write
+     */
+    static void writeField(MemoryBuffer buffer, String key)
+    {
+        final long[] limbs = new long[4];
+        if (key == null) {
+            buffer.writeByte(NULL_TAG);
+        } else if (toLimbs(key, limbs)) {
+            buffer.writeByte(ID_TAG);
+            writeId(buffer, limbs);
+        } else {
+            buffer.writeByte(STRING_TAG);
+            writeString(buffer, key);
+        }
+    }
+
+    static String readField(MemoryBuffer buffer)
+    {
+        return switch (buffer.readByte()) {
+            case NULL_TAG -> null;
+            case ID_TAG -> readId(buffer);
+            default -> readString(buffer);
+        };
+    }
+
+    /**
+     * Writes an array of keys into a value.  If every key is an ID, the elements are written at a fixed width.
+     *
+     * @param buffer buffer to write to
+     * @param keys   keys to write, or null for an empty array
+     */
+    static void writeArray(MemoryBuffer buffer, String[] keys)
+    {
+        if (keys == null || keys.length == 0) {
+            buffer.writeInt32(0);
+            return;
+        }
+        final int len = keys.length;
+        final long[][] ids = new long[len][4];
+        boolean allIds = true;
+        for (int i = 0; i < len && allIds; i++) {
+            allIds = toLimbs(keys[i], ids[i]);
+        }
+        buffer.writeInt32(len);
+        if (allIds) {
+            buffer.writeByte(ID_TAG);
+            for (long[] id : ids) writeId(buffer, id);
+        } else {
+            buffer.writeByte(STRING_TAG);
+            for (String key : keys) writeString(buffer, key);
+        }
+    }
+
+    /**
+     * Reads an array of keys from a value.
+     *
+     * @param buffer buffer to read from
+     * @return keys, or null if the array was empty
+     */
+    static String[] readArray(MemoryBuffer buffer)
+    {
+        final int len = buffer.readInt32();
+        if (len <= 0) return null;
+        final String[] ret = new String[len];
+        if (buffer.readByte() == ID_TAG) {
+            for (int i = 0; i < len; i++) ret[i] = readId(buffer);
+        } else {
+            for (int i = 0; i < len; i++) ret[i] = readString(buffer);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,40 @@
+package io.github.thomashuss.spat.library;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts operations by duration in power-of-two buckets of microseconds.  Bucket 0 holds operations which took
+ * under a microsecond, and bucket <i>i</i> those which took at least 2<sup><i>i</i>-1</sup> and under
+ * 2<sup><i>i</i></sup> microseconds.  The last bucket also holds everything slower.
+ */
+final class LatencyHistogram
+{
+    static final int BUCKETS = 32;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAdder count = new LongAdder();
+
+    void record(long nanos)
+    {
+        final long micros = nanos / 1000;
+        counts.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+        totalNanos.add(nanos);
+        count.increment();
+    }
+
+    long[] snapshot()
+    {
+        final long[] ret = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            ret[i] = counts.get(i);
+        }
+        return ret;
+    }
+
+    double meanMicros()
+    {
+        final long n = count.sum();
+        return n == 0 ? 0 : totalNanos.sum() / 1000.0 / n;
+    }
+}
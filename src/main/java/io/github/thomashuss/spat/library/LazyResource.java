@@ -0,0 +1,38 @@
+package io.github.thomashuss.spat.library;
+
+import java.util.function.Function;
+
+/**
+ * Reference from one resource to another which is read from the library the first time it is needed.
+ */
+final class LazyResource<T extends LibraryResource>
+{
+    private final String key;
+    private Function<String, T> resolver;
+    private T resolved;
+
+    LazyResource(String key, Function<String, T> resolver)
+    {
+        this.key = key;
+        this.resolver = resolver;
+    }
+
+    static String keyOf(LibraryResource resource)
+    {
+        return resource == null ? null : resource.getKey();
+    }
+
+    String key()
+    {
+        return key;
+    }
+
+    synchronized T get()
+    {
+        if (resolver != null) {
+            resolved = resolver.apply(key);
+            resolver = null;
+        }
+        return resolved;
+    }
+}
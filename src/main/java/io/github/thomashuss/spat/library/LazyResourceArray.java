@@ -0,0 +1,55 @@
+package io.github.thomashuss.spat.library;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * References from one resource to several others which are read from the library, together, the first time they
+ * are needed.
+ */
+final class LazyResourceArray<T extends LibraryResource>
+{
+    private final String[] keys;
+    private final IntFunction<T[]> arrayConstructor;
+    private Function<Collection<String>, Map<String, T>> resolver;
+    private T[] resolved;
+
+    LazyResourceArray(String[] keys, IntFunction<T[]> arrayConstructor,
+                      Function<Collection<String>, Map<String, T>> resolver)
+    {
+        this.keys = keys;
+        this.arrayConstructor = arrayConstructor;
+        this.resolver = resolver;
+    }
+
+    static String[] keysOf(LibraryResource[] resources)
+    {
+        if (resources == null) return null;
+        final String[] ret = new String[resources.length];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = resources[i].getKey();
+        }
+        return ret;
+    }
+
+    String[] keys()
+    {
+        return keys;
+    }
+
+    synchronized T[] get()
+    {
+        if (resolver != null) {
+            final Map<String, T> byKey = resolver.apply(Arrays.asList(keys));
+            resolved = arrayConstructor.apply(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                resolved[i] = byKey.get(keys[i]);
+            }
+            resolver = null;
+        }
+        return resolved;
+    }
+}
@@ -0,0 +1,56 @@
+package io.github.thomashuss.spat.library;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.function.IntFunction;
+
+/**
+ * Read-only view of a stored collection which loads each chunk of saved resources the first time one of its rows
+ * is asked for.
+ */
+final class LazySavedResourceList<T extends LibraryResource>
+        extends AbstractList<SavedResource<T>>
+        implements RandomAccess
+{
+    private final int size;
+    private final int chunkSize;
+    private final IntFunction<List<SavedResource<T>>> loader;
+    private final List<SavedResource<T>>[] chunks;
+
+    /**
+     * @param size      number of saved resources in the collection
+     * @param chunkSize number of saved resources in each chunk
+     * @param loader    loads the chunk with the given index, starting at 0
+     */
+    LazySavedResourceList(int size, int chunkSize, IntFunction<List<SavedResource<T>>> loader)
+    {
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.loader = loader;
+        @SuppressWarnings("unchecked")
+        List<SavedResource<T>>[] chunks = (List<SavedResource<T>>[]) new List<?>[(size + chunkSize - 1) / chunkSize];
+        this.chunks = chunks;
+    }
+
+    @Override
+    public SavedResource<T> get(int i)
+    {
+        Objects.checkIndex(i, size);
+        final int c = i / chunkSize;
+        List<SavedResource<T>> chunk;
+        synchronized (chunks) {
+            if ((chunk = chunks[c]) == null) {
+                chunks[c] = chunk = loader.apply(c);
+            }
+        }
+        return chunk.get(i % chunkSize);
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+}
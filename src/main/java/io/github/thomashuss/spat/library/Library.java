@@ -2,36 +2,55 @@ package io.github.thomashuss.spat.library;
 
 import io.github.thomashuss.spat.Spat;
 import org.apache.fury.Fury;
+import org.apache.fury.ThreadSafeFury;
 import org.apache.fury.memory.MemoryBuffer;
 import org.apache.fury.serializer.Serializer;
+import org.lmdbjava.CopyFlags;
+import org.lmdbjava.Cursor;
 import org.lmdbjava.CursorIterable;
 import org.lmdbjava.Dbi;
 import org.lmdbjava.DbiFlags;
 import org.lmdbjava.Env;
-import org.lmdbjava.Stat;
+import org.lmdbjava.EnvFlags;
+import org.lmdbjava.GetOp;
+import org.lmdbjava.PutFlags;
 import org.lmdbjava.Txn;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.time.temporal.Temporal;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.Objects;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.BiConsumer;
-import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.IntFunction;
 import java.util.function.Supplier;
 
 /**
@@ -46,23 +65,59 @@ import java.util.function.Supplier;
  *            └----> Label
  */
 public final class Library
-        implements AutoCloseable
+        implements AutoCloseable, LibraryMXBean
 {
     public static final long INITIAL_MAP_SIZE = 100_485_760;
+    /**
+     * Version of the record layout written by this class.  Libraries written with an older layout are rewritten
+     * by <code>upgrade()</code>.
+     */
+    static final int FORMAT_VERSION = 8;
     private static final String LIKED_SONGS_KEY = "likedSongs";
     private static final String SAVED_ALBUMS_KEY = "savedAlbums";
     /**
-     * Purely heuristic.
+     * The map doubles in size when it fills up, but grows by no more than this at once.
+     */
+    private static final long MAX_MAP_GROWTH = 1L << 30;
+    /**
+     * Number of pending saves committed per write transaction by default; 0 commits everything at once.
+     */
+    public static final int DEFAULT_SAVE_BATCH_SIZE = 50_000;
+    /**
+     * Number of resources of each type kept strongly reachable by default; 0 leaves only the weak cache.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 5_000;
+    /**
+     * Longest time, in milliseconds, that a modified resource waits to be committed in the background by default;
+     * 0 leaves everything to <code>saveModified()</code>.
+     */
+    public static final long DEFAULT_FLUSH_INTERVAL = 5_000;
+    /**
+     * Number of pending saves which wakes the background flusher early by default.
+     */
+    public static final int DEFAULT_FLUSH_THRESHOLD = 10_000;
+    /**
+     * Size, in bytes, from which serialized values are deflated by default; 0 stores every value raw.
+     */
+    public static final int DEFAULT_COMPRESS_THRESHOLD = 512;
+    /**
+     * Number of pending saves the background flusher commits per write transaction.  Kept small, since threads
+     * marking resources modified wait for the transaction in progress.
+     */
+    private static final int FLUSH_BATCH_SIZE = 500;
+    /**
+     * Number of saved resources stored under each key of a collection, so that an edit rewrites only the chunks
+     * it touched.
      */
-    private static final int CHECK_SIZE_FREQ = 1000;
+    private static final int SAVED_RESOURCE_CHUNK_SIZE = 256;
     private static final byte NO_SAVE = 0;
     private static final byte SHOULD_SAVE = 1;
     private static final byte SHOULD_SAVE_CONTENTS = 2;
 
     /**
-     * No need for a thread safe instance due to synchronization on lmdb env.
+     * Readers do not synchronize on the lmdb env, so each thread gets its own Fury.
      */
-    private static final Fury fury = Spat.fury;
+    private static final ThreadSafeFury fury = Spat.fury;
 
     static {
         fury.register(Album.class);
@@ -74,7 +129,7 @@ public final class Library
         fury.register(SavedResourceCollection.class);
         fury.register(Temporal.class);
         fury.register(Track.class);
-        fury.registerSerializer(URL.class, new URLSerializer(fury));
+        fury.registerSerializer(URL.class, URLSerializer::new);
         fury.register(ZonedDateTime.class);
     }
 
@@ -82,22 +137,82 @@ public final class Library
     private final int pageSize;
     private final Dbi<ByteBuffer> savedResourceListDb;
     private final Env<ByteBuffer> env;
-    private final Queue<Runnable> needsFinalize;
     private final ResourceKV<Album> albumDb;
     private final ResourceKV<Artist> artistDb;
     private final ResourceKV<Genre> genreDb;
     private final ResourceKV<Label> labelDb;
     private final ResourceKV<Playlist> playlistDb;
     private final ResourceKV<Track> trackDb;
+    private final ReferenceIndex refs;
+    private final AudioFeaturesStore audioFeatures;
+    private final NameIndex names;
+    private final EditJournal journal;
+    private final RowStore rows;
+    private final FetchTimes fetchTimes;
+    private final ResponseCache responses;
+    private final ValueCodec codec;
     private final Map<LibraryResource, Byte> needsSaveStatus;
-    private final Queue<Runnable> needsSave;
-    private final ByteBuffer keyBuf;
-    private final MemoryBuffer keyMemBuf;
+    /**
+     * Resources marked to be saved, serialized when they were last marked, so that the background flusher never
+     * reads an object which another thread may be modifying.
+     */
+    private final Map<LibraryResource, byte[]> pendingRecords;
+    /**
+     * Contents of the collections marked to be saved, copied when they were last marked or edited.
+     */
+    private final Map<SavedResourceCollection<?>, List<? extends SavedResource<?>>> pendingContents;
+    private final Deque<PendingSave> needsSave;
+    /**
+     * Saves which failed even in a write transaction of their own.  They are set aside so that the saves queued
+     * behind them are still committed, and are tried again only by <code>saveModified</code>.
+     */
+    private final List<PendingSave> failedSaves;
+    /**
+     * Times recorded by <code>markFetched</code> which have not been committed.  Kept apart from
+     * <code>needsSave</code>, since fetching a resource is not a modification the user has to save.
+     */
+    private final Map<AbstractSpotifyResource, Long> pendingFetches;
+    /**
+     * Responses stored by <code>cacheResponse</code> which have not been committed, by the resource requested.
+     */
+    private final Map<AbstractSpotifyResource, CachedResponse> pendingResponses;
+    private final ThreadLocal<ByteBuffer> keyBuf;
+    private final ThreadLocal<ReadTxn> readTxn;
+    /**
+     * Held for reading by every reader, and for writing while the map is resized.
+     */
+    private final ReadWriteLock mapLock;
     private final ReferenceQueue<LibraryResource> rq;
+    private final Flusher flusher;
+    private final int flushThreshold;
     private ByteBuffer valBuf = ByteBuffer.allocateDirect(1024);
     private MemoryBuffer valMemBuf = MemoryBuffer.fromByteBuffer(valBuf);
     private int srSize = 0;
-    private int ops = 0;
+    /**
+     * Set while <code>upgrade()</code> reads saved resource lists in an old layout.
+     */
+    private boolean upgrading;
+    /**
+     * Whether values are stored framed by <code>codec</code>.  Cleared only while <code>upgrade()</code> rewrites
+     * a library written before values were framed.
+     */
+    private boolean framedValues;
+    /**
+     * Set by <code>beginBulkLoad()</code> and cleared by <code>endBulkLoad()</code>.
+     */
+    private boolean bulkLoading;
+    /**
+     * Marks cleared by the current write transaction, restored if it has to be run again.
+     */
+    private Map<LibraryResource, Byte> savedMarks;
+    private volatile int mapGrowths;
+    /**
+     * Number of saves in <code>needsSave</code> and <code>failedSaves</code>, for readers which do not take the env
+     * lock.  Updated by <code>countPendingSaves()</code>.
+     */
+    private volatile int pendingSaves;
+    private final List<ObjectName> mbeans = new ArrayList<>();
+    private final ByteBuffer headerBuf = ByteBuffer.allocateDirect(ListHeader.BYTES);
 
     private WeakReference<SavedAlbumCollection> savedAlbums;
     private WeakReference<SavedTrackCollection> likedSongs;
@@ -105,104 +220,278 @@ public final class Library
     Library(SaveDirectory state)
     {
         this.state = state;
-        needsFinalize = new ArrayDeque<>();
         needsSave = new ArrayDeque<>();
+        failedSaves = new ArrayList<>();
+        pendingFetches = new LinkedHashMap<>();
+        pendingResponses = new LinkedHashMap<>();
         needsSaveStatus = new HashMap<>();
+        pendingRecords = new HashMap<>();
+        pendingContents = new HashMap<>();
         rq = new ReferenceQueue<>();
+        readTxn = ThreadLocal.withInitial(ReadTxn::new);
+        mapLock = new ReentrantReadWriteLock();
 
+        // a thread's nested reads share one read transaction through readTxn rather than lmdb's thread local storage
         env = Env.create()
                 .setMapSize(state.mapSize)
-                .setMaxDbs(7)
-                .open(state.dbDir);
+                .setMaxDbs(32)
+                .open(state.dbDir, EnvFlags.MDB_NOTLS);
         pageSize = env.stat().pageSize;
-        keyBuf = ByteBuffer.allocateDirect(env.getMaxKeySize());
-        keyMemBuf = MemoryBuffer.fromByteBuffer(keyBuf);
-        albumDb = new ResourceKV<>(Album.class, "album", false,
-                this::writeAlbum, finalizingReaderFor(Album.class, this::albumFinalizer));
-        artistDb = new ResourceKV<>(Artist.class, "artist", false,
-                this::writeArtist, finalizingReaderFor(Artist.class, this::artistFinalizer));
-        genreDb = new ResourceKV<>(Genre.class, "genre", true,
-                fury::serialize, readerFor(Genre.class));
-        labelDb = new ResourceKV<>(Label.class, "label", true,
-                fury::serialize, readerFor(Label.class));
-        playlistDb = new ResourceKV<>(Playlist.class, "playlist", false,
-                fury::serialize, readerFor(Playlist.class));
-        trackDb = new ResourceKV<>(Track.class, "track", false,
-                this::writeTrack, finalizingReaderFor(Track.class, this::trackFinalizer));
-
-        fury.registerSerializer(SavedAlbum.class, new SavedResourceSerializer<>(SavedAlbum.class, SavedAlbum::new, savedResourceFinalizer(albumDb)));
-        fury.registerSerializer(SavedTrack.class, new SavedResourceSerializer<>(SavedTrack.class, SavedTrack::new, savedResourceFinalizer(trackDb)));
+        final int maxKeySize = env.getMaxKeySize();
+        keyBuf = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(maxKeySize));
+        refs = new ReferenceIndex(env);
+        audioFeatures = new AudioFeaturesStore(env);
+        names = new NameIndex(env);
+        journal = new EditJournal(env);
+        rows = new RowStore(env);
+        fetchTimes = new FetchTimes(env);
+        codec = new ValueCodec(Math.max(0, Spat.preferences.getInt(Spat.P_COMPRESS_THRESHOLD,
+                DEFAULT_COMPRESS_THRESHOLD)));
+        responses = new ResponseCache(env, codec);
+        framedValues = state.formatVersion >= 6;
+        albumDb = new ResourceKV<>(Album.class, "album", ReferenceIndex.ALBUM, false,
+                this::writeAlbum, this::referenceAlbum, finalizingReaderFor(Album.class, this::albumFinalizer));
+        artistDb = new ResourceKV<>(Artist.class, "artist", ReferenceIndex.ARTIST, false,
+                this::writeArtist, this::referenceArtist, finalizingReaderFor(Artist.class, this::artistFinalizer));
+        genreDb = new ResourceKV<>(Genre.class, "genre", ReferenceIndex.GENRE, true,
+                fury::serialize, null, readerFor(Genre.class));
+        labelDb = new ResourceKV<>(Label.class, "label", ReferenceIndex.LABEL, true,
+                fury::serialize, null, readerFor(Label.class));
+        playlistDb = new ResourceKV<>(Playlist.class, "playlist", ReferenceIndex.COLLECTION, false,
+                fury::serialize, null, readerFor(Playlist.class));
+        trackDb = new ResourceKV<>(Track.class, "track", ReferenceIndex.TRACK, false,
+                this::writeTrack, this::referenceTrack, finalizingReaderFor(Track.class, this::trackFinalizer));
+        trackDb.indexes.add(audioFeatures);
+        albumDb.indexes.add(names.of(ReferenceIndex.ALBUM));
+        artistDb.indexes.add(names.of(ReferenceIndex.ARTIST));
+        trackDb.indexes.add(names.of(ReferenceIndex.TRACK));
+        albumDb.indexes.add(rows.of(ReferenceIndex.ALBUM));
+        artistDb.indexes.add(rows.of(ReferenceIndex.ARTIST));
+        trackDb.indexes.add(rows.of(ReferenceIndex.TRACK));
+        albumDb.indexes.add(fetchTimes.of(ReferenceIndex.ALBUM));
+        artistDb.indexes.add(fetchTimes.of(ReferenceIndex.ARTIST));
+        trackDb.indexes.add(fetchTimes.of(ReferenceIndex.TRACK));
+        albumDb.indexes.add(responses.of(ReferenceIndex.ALBUM));
+        artistDb.indexes.add(responses.of(ReferenceIndex.ARTIST));
+
+        fury.registerSerializer(SavedAlbum.class, f -> new SavedResourceSerializer<>(f, SavedAlbum.class, SavedAlbum::new, savedResourceKeyReader(albumDb, Album::new)));
+        fury.registerSerializer(SavedTrack.class, f -> new SavedResourceSerializer<>(f, SavedTrack.class, SavedTrack::new, savedResourceKeyReader(trackDb, Track::new)));
         savedResourceListDb = env.openDbi("savedResourceList", DbiFlags.MDB_CREATE);
+        registerMBeans();
+
+        final long flushInterval = Spat.preferences.getLong(Spat.P_FLUSH_INTERVAL, DEFAULT_FLUSH_INTERVAL);
+        flushThreshold = Math.max(1, Spat.preferences.getInt(Spat.P_FLUSH_THRESHOLD, DEFAULT_FLUSH_THRESHOLD));
+        if (flushInterval > 0) {
+            flusher = new Flusher("spat-flusher-" + state.dbDir.getName(), this::flushBatch, flushInterval);
+            flusher.start();
+        } else {
+            flusher = null;
+        }
     }
 
     /**
-     * Determines if the LMDB map size "should" be increased, and if so, increases it.  The map size should be
-     * substantially overestimated, as the default one is, so an invocation of this method will increase it by
-     * quite a bit.  A new size is computed by multiplying the number of pages in all DBs by page size and by 4.
-     * If this new size is greater than the current size, we apply the new size.
+     * Registers this library and its resource stores with the platform MBean server, under names which include the
+     * path of the database so that several open libraries can be told apart.
      */
-    private void growMap()
+    private void registerMBeans()
+    {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final String library = ObjectName.quote(state.dbDir.getAbsolutePath());
+        try {
+            final ObjectName name = new ObjectName("io.github.thomashuss.spat:type=Library,name=" + library);
+            server.registerMBean(this, name);
+            mbeans.add(name);
+            for (ResourceKV<?> db : List.of(albumDb, artistDb, genreDb, labelDb, playlistDb, trackDb)) {
+                final ObjectName dbName = new ObjectName("io.github.thomashuss.spat:type=ResourceStore,library="
+                        + library + ",name=" + db.dbKey);
+                server.registerMBean(db.metrics, dbName);
+                mbeans.add(dbName);
+            }
+        } catch (JMException e) {
+            System.err.println("WARNING: could not register library MBeans: " + e);
+        }
+    }
+
+    private void unregisterMBeans()
+    {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : mbeans) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException ignored) {
+            }
+        }
+        mbeans.clear();
+    }
+
+    private void setMapSize(long mapSize)
     {
-        final long compareSize;
-        try (Txn<ByteBuffer> txn = env.txnRead()) {
-            final Stat s1 = albumDb.db.stat(txn), s2 = artistDb.db.stat(txn), s3 = genreDb.db.stat(txn),
-                    s4 = labelDb.db.stat(txn), s5 = playlistDb.db.stat(txn), s6 = trackDb.db.stat(txn),
-                    s7 = savedResourceListDb.stat(txn);
-            compareSize = (s1.branchPages + s1.leafPages + s1.overflowPages
-                    + s2.branchPages + s2.leafPages + s2.overflowPages
-                    + s3.branchPages + s3.leafPages + s3.overflowPages
-                    + s4.branchPages + s4.leafPages + s4.overflowPages
-                    + s5.branchPages + s5.leafPages + s5.overflowPages
-                    + s6.branchPages + s6.leafPages + s6.overflowPages
-                    + s7.branchPages + s7.leafPages + s7.overflowPages) * pageSize * 4;
+        mapLock.writeLock().lock();
+        try {
+            env.setMapSize(state.mapSize = mapSize);
+        } finally {
+            mapLock.writeLock().unlock();
         }
-        if (compareSize > state.mapSize) {
-            env.setMapSize(state.mapSize = compareSize);
+    }
+
+    /**
+     * Begins, or joins, the calling thread's read transaction.  Every invocation must be paired with
+     * <code>endRead()</code>, and the thread must not wait on the lmdb env in between.
+     *
+     * @return read transaction
+     */
+    private Txn<ByteBuffer> beginRead()
+    {
+        mapLock.readLock().lock();
+        final ReadTxn r = readTxn.get();
+        if (r.depth++ == 0) {
+            try {
+                r.txn = env.txnRead();
+            } catch (RuntimeException e) {
+                r.depth = 0;
+                mapLock.readLock().unlock();
+                throw e;
+            }
         }
+        return r.txn;
     }
 
     /**
-     * Invokes <code>growMap()</code> if enough operations have been performed.
+     * Leaves the calling thread's read transaction, closing it once the outermost read ends, so that threads which
+     * come and go do not each keep one of lmdb's reader slots.
      */
-    private void maybeGrowMap()
+    private void endRead()
     {
-        if (++ops == CHECK_SIZE_FREQ) {
-            growMap();
-            ops = 0;
+        final ReadTxn r = readTxn.get();
+        if (--r.depth == 0) {
+            r.txn.close();
+            r.txn = null;
         }
+        mapLock.readLock().unlock();
     }
 
-    private static <T extends LibraryResource, R extends SavedResource<T>> BiFunction<R, MemoryBuffer, Runnable> savedResourceFinalizer(
-            final ResourceKV<T> db)
+    /**
+     * Runs <code>body</code> in a write transaction and commits it.  If the map fills up, the transaction is
+     * rolled back, along with the save marks it cleared, and run again in a larger map, so <code>body</code> must be
+     * safe to run more than once.  If it fails for any other reason, the marks are restored before the exception is
+     * rethrown.  Must be called while synchronized on the lmdb env.
+     *
+     * @param body writes to make
+     */
+    private void write(Consumer<Txn<ByteBuffer>> body)
+    {
+        final Map<LibraryResource, Byte> marks = new HashMap<>();
+        savedMarks = marks;
+        try {
+            for (; ; ) {
+                try (Txn<ByteBuffer> txn = env.txnWrite()) {
+                    body.accept(txn);
+                    txn.commit();
+                    dropSnapshots(marks.keySet());
+                    return;
+                } catch (Env.MapFullException e) {
+                    needsSaveStatus.putAll(marks);
+                    marks.clear();
+                    mapGrowths++;
+                    setMapSize(state.mapSize + Math.min(state.mapSize, MAX_MAP_GROWTH));
+                }
+            }
+        } catch (RuntimeException | Error e) {
+            needsSaveStatus.putAll(marks);
+            throw e;
+        } finally {
+            savedMarks = null;
+        }
+    }
+
+    /**
+     * Forgets the snapshots of resources which no longer need saving.  Must be called while synchronized on the
+     * lmdb env.
+     *
+     * @param saved resources saved by a committed write transaction
+     */
+    private void dropSnapshots(Collection<LibraryResource> saved)
+    {
+        for (LibraryResource r : saved) {
+            final byte curr = needsSaveStatus.getOrDefault(r, NO_SAVE);
+            if ((curr & SHOULD_SAVE) == 0) pendingRecords.remove(r);
+            if ((curr & SHOULD_SAVE_CONTENTS) == 0) pendingContents.remove(r);
+        }
+    }
+
+    @Override
+    public long getMapSize()
+    {
+        mapLock.readLock().lock();
+        try {
+            return state.mapSize;
+        } finally {
+            mapLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long getMapUsed()
+    {
+        mapLock.readLock().lock();
+        try {
+            return (env.info().lastPageNumber + 1) * pageSize;
+        } finally {
+            mapLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int getMapGrowths()
+    {
+        return mapGrowths;
+    }
+
+    @Override
+    public int getPendingSaves()
+    {
+        // read without waiting for a save in progress, so the count may be stale
+        return pendingSaves;
+    }
+
+    /**
+     * Publishes the number of pending saves.  Must be called while synchronized on the lmdb env, once the queue has
+     * changed.
+     */
+    private void countPendingSaves()
+    {
+        pendingSaves = needsSave.size() + failedSaves.size();
+    }
+
+    private <T extends LibraryResource, R extends SavedResource<T>> BiConsumer<R, MemoryBuffer> savedResourceKeyReader(
+            final ResourceKV<T> db, final Function<String, T> placeholder)
     {
         return (sr, buffer) -> {
-            final String resourceKey = readResourceKeyField(buffer);
-            return () -> sr.setResource(db.read(resourceKey));
+            if (upgrading) {
+                // only the key is needed to write the resource back out
+                final String resourceKey = state.formatVersion < 1
+                        ? readLegacyKeyField(buffer) : KeyCodec.readField(buffer);
+                sr.setResource(resourceKey == null ? null : placeholder.apply(resourceKey));
+            } else {
+                sr.setResource(KeyCodec.readField(buffer), db::read);
+            }
         };
     }
 
-    private static <F extends LibraryResource> F[] readResourceArray(Function<Integer, F[]> fieldArrayConstructor,
-                                                                     String[] keys,
-                                                                     Function<String, F> func)
+    private static <F extends LibraryResource> LazyResourceArray<F> lazyResourceArray(String[] keys,
+                                                                                      IntFunction<F[]> arrayConstructor,
+                                                                                      ResourceKV<F> db)
     {
-        if (keys != null) {
-            int len = keys.length;
-            F[] ret = fieldArrayConstructor.apply(len);
-            for (int i = 0; i < len; i++) {
-                ret[i] = func.apply(keys[i]);
-            }
-            return ret;
-        }
-        return null;
+        return keys == null ? null : new LazyResourceArray<>(keys, arrayConstructor, ks -> db.readOrCreateAll(ks, null));
     }
 
-    private static String[] readResourceKeyArray(MemoryBuffer buffer)
+    private static String[] readLegacyKeyArray(MemoryBuffer buffer)
     {
         int len = buffer.readInt32();
         if (len > 0) {
             String[] ret = new String[len];
             for (int i = 0; i < len; i++) {
-                ret[i] = fury.readString(buffer);
+                ret[i] = readString(buffer);
             }
             return ret;
         } else {
@@ -210,9 +499,9 @@ public final class Library
         }
     }
 
-    private static String readResourceKeyField(MemoryBuffer buffer)
+    private static String readLegacyKeyField(MemoryBuffer buffer)
     {
-        String keyObj = fury.readString(buffer);
+        String keyObj = readString(buffer);
         if (keyObj.isEmpty()) {
             return null;
         } else {
@@ -220,17 +509,17 @@ public final class Library
         }
     }
 
-    private static <T extends LibraryResource> void readResourceField(String key,
-                                                                      Function<String, T> reader,
-                                                                      Consumer<T> setter)
+    private static <T extends LibraryResource> LazyResource<T> lazyResource(String key, ResourceKV<T> db)
     {
-        if (key != null) {
-            T toSet = reader.apply(key);
-            setter.accept(toSet);
-        }
+        return key == null ? null : new LazyResource<>(key, db::read);
     }
 
-    private static int roundBufSize(int n)
+    private static String readString(MemoryBuffer buffer)
+    {
+        return fury.execute(f -> f.readString(buffer));
+    }
+
+    static int roundBufSize(int n)
     {
         n |= (n - 1) >> 1;
         n |= n >> 2;
@@ -246,7 +535,7 @@ public final class Library
         if (likedSongs == null || (ret = likedSongs.get()) == null) {
             ret = new SavedTrackCollection(LIKED_SONGS_KEY);
             likedSongs = new WeakReference<>(ret);
-            populateSavedResources(ret);
+            populateSavedResourcesLazily(ret);
         }
         return ret;
     }
@@ -257,7 +546,7 @@ public final class Library
         if (savedAlbums == null || (ret = savedAlbums.get()) == null) {
             ret = new SavedAlbumCollection(SAVED_ALBUMS_KEY);
             savedAlbums = new WeakReference<>(ret);
-            populateSavedResources(ret);
+            populateSavedResourcesLazily(ret);
         }
         return ret;
     }
@@ -317,54 +606,212 @@ public final class Library
         return retrieveOrCreate(labelDb, name, Label::new);
     }
 
+    /**
+     * Loads the contents of a collection so that they can be modified.  A collection which was loaded lazily is
+     * copied into memory.
+     *
+     * @param collection collection to load
+     */
     public <T extends SpotifyResource> void populateSavedResources(SavedResourceCollection<T> collection)
     {
-        if (collection.resources == null) {
-            synchronized (env) {
-                try (Txn<ByteBuffer> txn = env.txnRead()) {
-                    final ByteBuffer valBuf = savedResourceListDb.get(txn, encodeKey(collection.getKey()));
-                    if (valBuf == null) {
+        if (collection.lazyResources != null) {
+            collection.materialize();
+        } else if (collection.resources == null) {
+            synchronized (collection) {
+                if (collection.resources != null || collection.lazyResources != null) {
+                    collection.materialize();
+                    return;
+                }
+                final Txn<ByteBuffer> txn = beginRead();
+                try {
+                    final String key = collection.getKey();
+                    final ByteBuffer hBuf = savedResourceListDb.get(txn, encodeChunkKey(key, 0));
+                    if (hBuf == null) {
                         collection.resources = new ArrayList<>();
                         return;
                     }
-                    @SuppressWarnings("unchecked")
-                    ArrayList<SavedResource<T>> srList = (ArrayList<SavedResource<T>>) fury.deserialize(MemoryBuffer.fromByteBuffer(valBuf));
+                    final ListHeader header = ListHeader.read(hBuf);
+                    final ArrayList<SavedResource<T>> srList = new ArrayList<>(header.size);
+                    for (int i = 1; i <= header.chunks; i++) {
+                        srList.addAll(this.<T>readChunk(txn, key, i));
+                    }
                     collection.resources = srList;
+                } finally {
+                    endRead();
                 }
-                handleFinalizationQueue();
             }
         }
     }
 
-    private <T extends AbstractSpotifyResource> void depopulateSavedResources(SavedResourceCollection<T> collection)
+    /**
+     * Loads a collection lazily: each chunk of its contents is read when one of its rows is first accessed, and
+     * the resource of each row is read when it is first accessed.  The contents are copied into memory as soon as
+     * the collection is modified.
+     *
+     * @param collection collection to load
+     */
+    public <T extends AbstractSpotifyResource> void populateSavedResourcesLazily(SavedResourceCollection<T> collection)
+    {
+        if (collection.resources == null && collection.lazyResources == null) {
+            synchronized (collection) {
+                if (collection.resources != null || collection.lazyResources != null) return;
+                final String key = collection.getKey();
+                final ListHeader header;
+                final Txn<ByteBuffer> txn = beginRead();
+                try {
+                    final ByteBuffer hBuf = savedResourceListDb.get(txn, encodeChunkKey(key, 0));
+                    header = hBuf == null ? null : ListHeader.read(hBuf);
+                } finally {
+                    endRead();
+                }
+                if (header == null) {
+                    collection.resources = new ArrayList<>();
+                } else {
+                    collection.lazyResources = new LazySavedResourceList<>(header.size, header.chunkSize,
+                            c -> readChunk(key, c + 1));
+                }
+            }
+        }
+    }
+
+    private <T extends AbstractSpotifyResource> void depopulateSavedResources(Txn<ByteBuffer> txn,
+                                                                              SavedResourceCollection<T> collection)
     {
         ArrayList<SavedResource<T>> savedResources = collection.resources;
         if (savedResources != null) {
             synchronized (env) {
-                if (srSize == 0 && !savedResources.isEmpty()) {
-                    srSize = fury.serialize(savedResources.get(0)).length;
-                }
-                final int bufSize = savedResources.size() * srSize;
-                if (valBuf.capacity() < bufSize) {
-                    valBuf = ByteBuffer.allocateDirect(roundBufSize(bufSize));
-                    valMemBuf = MemoryBuffer.fromByteBuffer(valBuf);
-                } else {
-                    valBuf.clear();
-                    valMemBuf.writerIndex(0);
-                }
+                writeContents(txn, collection.getKey(), savedResources);
+            }
+        }
+    }
+
+    /**
+     * Writes the contents of a collection as they were when it was last marked or edited.  Must be called while
+     * synchronized on the lmdb env.
+     *
+     * @param txn        write transaction
+     * @param collection collection marked by <code>markContentsModified</code>
+     */
+    private void savePendingContents(Txn<ByteBuffer> txn, SavedResourceCollection<?> collection)
+    {
+        final List<? extends SavedResource<?>> contents = pendingContents.get(collection);
+        if (contents != null) {
+            writeContents(txn, collection.getKey(), contents);
+        }
+    }
+
+    private void writeContents(Txn<ByteBuffer> txn, String key, List<? extends SavedResource<?>> savedResources)
+    {
+        writeSavedResources(txn, key, savedResources);
+        refs.setReferences(txn, ReferenceIndex.nodeOf(ReferenceIndex.COLLECTION, key), referencesOf(savedResources));
+    }
+
+    /**
+     * Copies the contents of a collection for <code>savePendingContents</code>.  A collection which was loaded
+     * lazily and never modified has nothing to save.  Must be called while synchronized on the lmdb env, on the
+     * thread which modifies the collection.
+     *
+     * @param collection collection to copy
+     */
+    private void snapshotContents(SavedResourceCollection<?> collection)
+    {
+        final ArrayList<? extends SavedResource<?>> savedResources = collection.resources;
+        if (savedResources == null) pendingContents.remove(collection);
+        else pendingContents.put(collection, new ArrayList<>(savedResources));
+    }
+
+    /**
+     * Stores a list of saved resources as a header (chunk 0) followed by chunks of at most
+     * <code>SAVED_RESOURCE_CHUNK_SIZE</code> saved resources each.  Chunks whose contents did not change are not
+     * rewritten.
+     *
+     * @param txn            write transaction
+     * @param key            key of the collection
+     * @param savedResources contents of the collection
+     */
+    private void writeSavedResources(Txn<ByteBuffer> txn, String key, List<? extends SavedResource<?>> savedResources)
+    {
+        final ByteBuffer oldHeader = savedResourceListDb.get(txn, encodeChunkKey(key, 0));
+        final int oldChunks = oldHeader == null ? 0 : ListHeader.read(oldHeader).chunks;
+        final int size = savedResources.size();
+        final int chunks = (size + SAVED_RESOURCE_CHUNK_SIZE - 1) / SAVED_RESOURCE_CHUNK_SIZE;
+
+        if (srSize == 0 && size > 0) {
+            srSize = fury.serialize(savedResources.get(0)).length;
+        }
+        for (int i = 0; i < chunks; i++) {
+            final int from = i * SAVED_RESOURCE_CHUNK_SIZE;
+            final int to = Math.min(size, from + SAVED_RESOURCE_CHUNK_SIZE);
+            final int bufSize = (to - from) * srSize;
+            if (valBuf.capacity() < bufSize) {
+                valBuf = ByteBuffer.allocateDirect(roundBufSize(bufSize));
+                valMemBuf = MemoryBuffer.fromByteBuffer(valBuf);
+            } else {
+                valBuf.clear();
+                valMemBuf.writerIndex(0);
+            }
+
+            fury.serialize(valMemBuf, new ArrayList<>(savedResources.subList(from, to)));
+            ensureValOffHeap();
+            final ByteBuffer chunkKey = encodeChunkKey(key, i + 1);
+            final ByteBuffer val = framed(valBuf);
+            if (!val.equals(savedResourceListDb.get(txn, chunkKey))) {
+                savedResourceListDb.put(txn, chunkKey, val);
+            }
+        }
+        for (int i = chunks + 1; i <= oldChunks; i++) {
+            savedResourceListDb.delete(txn, encodeChunkKey(key, i));
+        }
+        new ListHeader(size, SAVED_RESOURCE_CHUNK_SIZE, chunks).write(headerBuf);
+        savedResourceListDb.put(txn, encodeChunkKey(key, 0), headerBuf);
+    }
 
-                fury.serialize(valMemBuf, savedResources);
-                ensureValOffHeap();
-                savedResourceListDb.put(encodeKey(collection.getKey()), valBuf);
-                growMap();
+    private void deleteSavedResources(Txn<ByteBuffer> txn, String key)
+    {
+        final ByteBuffer hBuf = savedResourceListDb.get(txn, encodeChunkKey(key, 0));
+        if (hBuf != null) {
+            final int chunks = ListHeader.read(hBuf).chunks;
+            for (int i = 0; i <= chunks; i++) {
+                savedResourceListDb.delete(txn, encodeChunkKey(key, i));
             }
         }
     }
 
+    private <T extends LibraryResource> List<SavedResource<T>> readChunk(String key, int chunk)
+    {
+        final Txn<ByteBuffer> txn = beginRead();
+        try {
+            return readChunk(txn, key, chunk);
+        } finally {
+            endRead();
+        }
+    }
+
+    /**
+     * Reads one chunk of a stored collection.
+     *
+     * @param txn   read transaction
+     * @param key   key of the collection
+     * @param chunk index of the chunk, counting the header as chunk 0
+     * @return the saved resources in the chunk
+     * @throws IllegalStateException if the header counts the chunk but it is not stored
+     */
+    private <T extends LibraryResource> List<SavedResource<T>> readChunk(Txn<ByteBuffer> txn, String key, int chunk)
+    {
+        final ByteBuffer valBuf = savedResourceListDb.get(txn, encodeChunkKey(key, chunk));
+        if (valBuf == null) {
+            throw new IllegalStateException("Chunk " + chunk + " of saved resource list " + key + " is missing");
+        }
+        @SuppressWarnings("unchecked")
+        List<SavedResource<T>> ret =
+                (List<SavedResource<T>>) fury.deserialize(MemoryBuffer.fromByteBuffer(unframed(valBuf)));
+        return ret;
+    }
+
     public Playlist playlistOf(String id)
     {
         Playlist p = retrieveOrCreate(playlistDb, id, Playlist::new);
-        populateSavedResources(p);
+        populateSavedResourcesLazily(p);
         return p;
     }
 
@@ -373,6 +820,352 @@ public final class Library
         return retrieveOrCreate(trackDb, id, Track::new);
     }
 
+    /**
+     * Reads or creates the tracks with the given IDs.  Those which are not cached are read in key order in a
+     * single read transaction.
+     *
+     * @param ids IDs of the tracks
+     * @return tracks by ID, in the order of <code>ids</code>
+     */
+    public Map<String, Track> tracksOf(Collection<String> ids)
+    {
+        return trackDb.readOrCreateAll(ids, Track::new);
+    }
+
+    /**
+     * Reads or creates the albums with the given IDs.  Those which are not cached are read in key order in a
+     * single read transaction.
+     *
+     * @param ids IDs of the albums
+     * @return albums by ID, in the order of <code>ids</code>
+     */
+    public Map<String, Album> albumsOf(Collection<String> ids)
+    {
+        return albumDb.readOrCreateAll(ids, Album::new);
+    }
+
+    /**
+     * Reads or creates the artists with the given IDs.  Those which are not cached are read in key order in a
+     * single read transaction.
+     *
+     * @param ids IDs of the artists
+     * @return artists by ID, in the order of <code>ids</code>
+     */
+    public Map<String, Artist> artistsOf(Collection<String> ids)
+    {
+        return artistDb.readOrCreateAll(ids, Artist::new);
+    }
+
+    private static char fetchTypeOf(AbstractSpotifyResource resource)
+    {
+        if (resource instanceof Track) return ReferenceIndex.TRACK;
+        if (resource instanceof Album) return ReferenceIndex.ALBUM;
+        if (resource instanceof Artist) return ReferenceIndex.ARTIST;
+        return 0;
+    }
+
+    /**
+     * Records that a track, album or artist was just fetched from Spotify.  The time is committed by the background
+     * flusher, or by the next save, without counting as a modification.  Other resources are ignored.
+     *
+     * @param resource resource which was fetched
+     */
+    public void markFetched(AbstractSpotifyResource resource)
+    {
+        if (fetchTypeOf(resource) == 0) return;
+        final long time = Instant.now().getEpochSecond();
+        synchronized (env) {
+            pendingFetches.put(resource, time);
+            if (flusher != null && pendingFetches.size() == flushThreshold) flusher.wake();
+        }
+    }
+
+    /**
+     * Commits fetch times recorded by <code>markFetched</code>, oldest first.  If the write fails, they are kept to
+     * be tried again.  Must be called while synchronized on the lmdb env.
+     *
+     * @param batchSize greatest number of times to commit, or 0 for no limit
+     */
+    private void saveFetchTimes(int batchSize)
+    {
+        if (pendingFetches.isEmpty()) return;
+        final Map<AbstractSpotifyResource, Long> batch = takeBatch(pendingFetches, batchSize);
+        try {
+            write(txn -> batch.forEach((r, time) -> fetchTimes.set(txn, fetchTypeOf(r), r.getKey(), time)));
+        } catch (RuntimeException | Error e) {
+            // a newer time recorded in the meantime wins
+            batch.forEach(pendingFetches::putIfAbsent);
+            throw e;
+        }
+    }
+
+    /**
+     * Removes the oldest entries from a map of pending writes.
+     *
+     * @param pending   pending writes, in the order they were made
+     * @param batchSize greatest number of entries to remove, or 0 for no limit
+     * @return the removed entries, in order
+     */
+    private static <K, V> Map<K, V> takeBatch(Map<K, V> pending, int batchSize)
+    {
+        final Map<K, V> batch = new LinkedHashMap<>();
+        final Iterator<Map.Entry<K, V>> it = pending.entrySet().iterator();
+        while (it.hasNext() && (batchSize <= 0 || batch.size() < batchSize)) {
+            final Map.Entry<K, V> e = it.next();
+            batch.put(e.getKey(), e.getValue());
+            it.remove();
+        }
+        return batch;
+    }
+
+    /**
+     * Records that tracks, albums or artists were just fetched from Spotify, as <code>markFetched</code> does for
+     * one resource.
+     *
+     * @param resources resources which were fetched
+     */
+    public void markFetched(Collection<? extends AbstractSpotifyResource> resources)
+    {
+        final long time = Instant.now().getEpochSecond();
+        synchronized (env) {
+            for (AbstractSpotifyResource resource : resources) {
+                if (fetchTypeOf(resource) != 0) pendingFetches.put(resource, time);
+            }
+            if (flusher != null && pendingFetches.size() >= flushThreshold) flusher.wake();
+        }
+    }
+
+    /**
+     * Looks up when a track, album or artist was last fetched from Spotify, including times not yet committed.
+     *
+     * @param resource resource to look up
+     * @return time of the last fetch, <code>Instant.EPOCH</code> if it was stored before fetches were recorded, or
+     * null if it has not been stored
+     */
+    public Instant getFetchedAt(AbstractSpotifyResource resource)
+    {
+        final char type = fetchTypeOf(resource);
+        if (type == 0) return null;
+        synchronized (env) {
+            final Long pending = pendingFetches.get(resource);
+            if (pending != null) return Instant.ofEpochSecond(pending);
+        }
+        final long time;
+        final Txn<ByteBuffer> txn = beginRead();
+        try {
+            time = fetchTimes.get(txn, type, resource.getKey());
+        } finally {
+            endRead();
+        }
+        return time < 0 ? null : Instant.ofEpochSecond(time);
+    }
+
+    /**
+     * Finds the tracks which were fetched from Spotify longest ago.
+     *
+     * @param before only tracks last fetched before this time are returned
+     * @param limit  greatest number of tracks to return
+     * @return tracks, oldest fetch first
+     */
+    public List<Track> findStaleTracks(Instant before, int limit)
+    {
+        return findStale(trackDb, before, limit);
+    }
+
+    /**
+     * Finds the albums which were fetched from Spotify longest ago.
+     *
+     * @see #findStaleTracks(Instant, int)
+     */
+    public List<Album> findStaleAlbums(Instant before, int limit)
+    {
+        return findStale(albumDb, before, limit);
+    }
+
+    /**
+     * Finds the artists which were fetched from Spotify longest ago.
+     *
+     * @see #findStaleTracks(Instant, int)
+     */
+    public List<Artist> findStaleArtists(Instant before, int limit)
+    {
+        return findStale(artistDb, before, limit);
+    }
+
+    private <T extends LibraryResource> List<T> findStale(ResourceKV<T> db, Instant before, int limit)
+    {
+        final long time = before.getEpochSecond();
+        // fetched since, but not yet committed
+        final Set<String> fresh = new HashSet<>();
+        synchronized (env) {
+            pendingFetches.forEach((r, fetchedAt) -> {
+                if (fetchedAt >= time && fetchTypeOf(r) == db.refType) fresh.add(r.getKey());
+            });
+        }
+        final List<String> keys;
+        final Txn<ByteBuffer> txn = beginRead();
+        try {
+            keys = fetchTimes.stalest(txn, db.refType, time, limit + fresh.size());
+        } finally {
+            endRead();
+        }
+        keys.removeIf(fresh::contains);
+        if (keys.size() > limit) keys.subList(limit, keys.size()).clear();
+        return new ArrayList<>(db.readOrCreateAll(keys, null).values());
+    }
+
+    private static char responseTypeOf(AbstractSpotifyResource resource)
+    {
+        if (resource instanceof Album) return ReferenceIndex.ALBUM;
+        if (resource instanceof Artist) return ReferenceIndex.ARTIST;
+        return 0;
+    }
+
+    /**
+     * Looks up the last response from Spotify to the request for an album or artist, as stored by
+     * <code>cacheResponse</code>.
+     *
+     * @param resource album or artist which is requested
+     * @return the response, or null if none is stored, it has expired, or <code>resource</code> is of another type
+     */
+    public CachedResponse getCachedResponse(AbstractSpotifyResource resource)
+    {
+        final char type = responseTypeOf(resource);
+        if (type == 0) return null;
+        synchronized (env) {
+            final CachedResponse pending = pendingResponses.get(resource);
+            if (pending != null) return pending;
+        }
+        final Txn<ByteBuffer> txn = beginRead();
+        try {
+            return responses.get(txn, type, resource.getKey(), Instant.now().getEpochSecond());
+        } finally {
+            endRead();
+        }
+    }
+
+    /**
+     * Stores a response from Spotify to the request for a single album or artist, if it has an entity tag, so that
+     * the request can be made conditional next time.  The response is committed by the background flusher, or by
+     * the next save, without counting as a modification.  Responses for other resources are ignored.
+     *
+     * @param resource album or artist which was requested
+     * @param response response to store
+     */
+    public void cacheResponse(AbstractSpotifyResource resource, CachedResponse response)
+    {
+        if (responseTypeOf(resource) == 0) return;
+        synchronized (env) {
+            pendingResponses.put(resource, response);
+            if (flusher != null && pendingResponses.size() == flushThreshold) flusher.wake();
+        }
+    }
+
+    /**
+     * Commits responses stored by <code>cacheResponse</code>, oldest first.  If the write fails, they are kept to
+     * be tried again.  Must be called while synchronized on the lmdb env.
+     *
+     * @param batchSize greatest number of responses to commit, or 0 for no limit
+     */
+    private void saveCachedResponses(int batchSize)
+    {
+        if (pendingResponses.isEmpty()) return;
+        final Map<AbstractSpotifyResource, CachedResponse> batch = takeBatch(pendingResponses, batchSize);
+        final long time = Instant.now().getEpochSecond();
+        try {
+            write(txn -> batch.forEach((r, response) ->
+                    responses.put(txn, responseTypeOf(r), r.getKey(), response, time)));
+        } catch (RuntimeException | Error e) {
+            batch.forEach(pendingResponses::putIfAbsent);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the audio features of every track in one pass, without reading the tracks.  Features which have not
+     * been saved are not included.
+     *
+     * @return features of every track which has them
+     */
+    public AudioFeatureTable scanAudioFeatures()
+    {
+        final Txn<ByteBuffer> txn = beginRead();
+        try {
+            return audioFeatures.scan(txn);
+        } finally {
+            endRead();
+        }
+    }
+
+    /**
+     * Finds the tracks whose names contain <code>query</code>, ignoring case, using the name index.  Names which
+     * have not been saved are not searched.
+     *
+     * @param query text to look for
+     * @param limit greatest number of tracks to return, or 0 for no limit
+     * @return matching tracks
+     */
+    public List<Track> findTracksByName(String query, int limit)
+    {
+        return findByName(trackDb, query, limit);
+    }
+
+    /**
+     * Finds the albums whose names contain <code>query</code>, ignoring case.
+     *
+     * @see #findTracksByName(String, int)
+     */
+    public List<Album> findAlbumsByName(String query, int limit)
+    {
+        return findByName(albumDb, query, limit);
+    }
+
+    /**
+     * Finds the artists whose names contain <code>query</code>, ignoring case.
+     *
+     * @see #findTracksByName(String, int)
+     */
+    public List<Artist> findArtistsByName(String query, int limit)
+    {
+        return findByName(artistDb, query, limit);
+    }
+
+    private <T extends LibraryResource> List<T> findByName(ResourceKV<T> db, String query, int limit)
+    {
+        final List<String> keys;
+        final Txn<ByteBuffer> txn = beginRead();
+        try {
+            keys = names.search(txn, db.refType, query, limit);
+        } finally {
+            endRead();
+        }
+        return new ArrayList<>(db.readOrCreateAll(keys, null).values());
+    }
+
+    /**
+     * Fills in what a table shows of a track without reading the track, unless it is held in memory or its row
+     * has not been stored yet.
+     *
+     * @param id  ID of the track
+     * @param row row to fill in
+     * @return false if there is no such track
+     */
+    public boolean readTrackRow(String id, TrackRow row)
+    {
+        Track t = trackDb.peek(id);
+        if (t == null) {
+            final Txn<ByteBuffer> txn = beginRead();
+            try {
+                if (rows.read(txn, id, row)) return true;
+            } finally {
+                endRead();
+            }
+            if ((t = getTrack(id)) == null) return false;
+        }
+        row.setTrack(t);
+        return true;
+    }
+
     public Track getTrack(String id)
     {
         return retrieveOrCreate(trackDb, id, null);
@@ -380,21 +1173,150 @@ public final class Library
 
     public List<Playlist> getPlaylists()
     {
-        List<Playlist> ret = playlistDb.values();
-        handleFinalizationQueue();
-        return ret;
+        return playlistDb.values();
     }
 
     public void getPlaylists(Collection<Playlist> collection)
     {
         playlistDb.values(collection);
-        handleFinalizationQueue();
     }
 
     public void deletePlaylist(Playlist playlist)
     {
-        playlistDb.remove(playlist.getKey());
-        savedResourceListDb.delete(keyBuf.rewind());
+        synchronized (env) {
+            playlistDb.remove(playlist.getKey());
+            write(txn -> deleteSavedResources(txn, playlist.getKey()));
+        }
+    }
+
+    /**
+     * Applies an edit to a collection and records it in the edit journal.  The record is committed together with
+     * the new contents of the collection, so that after a crash the stored contents match the journal.
+     *
+     * @param seq    sequence number of the edit; later edits have greater numbers
+     * @param record edit, as written by the edit tracker
+     * @param target collection the edit applies to
+     * @param apply  applies the edit to <code>target</code>
+     */
+    public void journalEdit(long seq, byte[] record, SavedResourceCollection<?> target, Runnable apply)
+    {
+        synchronized (env) {
+            apply.run();
+            if (pendingContents.containsKey(target)) snapshotContents(target);
+            write(txn -> {
+                journal.put(txn, seq, record);
+                depopulateSavedResources(txn, target);
+            });
+        }
+    }
+
+    /**
+     * Reverts an edit and removes it from the edit journal, committing the reverted contents of the collection
+     * along with it.
+     *
+     * @param seq    sequence number of the edit
+     * @param target collection the edit applied to
+     * @param revert reverts the edit on <code>target</code>
+     */
+    public void unjournalEdit(long seq, SavedResourceCollection<?> target, Runnable revert)
+    {
+        synchronized (env) {
+            revert.run();
+            if (pendingContents.containsKey(target)) snapshotContents(target);
+            write(txn -> {
+                journal.remove(txn, seq);
+                depopulateSavedResources(txn, target);
+            });
+        }
+    }
+
+    /**
+     * Removes edits from the edit journal without touching the collections they applied to.
+     *
+     * @param seqs sequence numbers of the edits
+     */
+    public void unjournalEdits(Collection<Long> seqs)
+    {
+        if (seqs.isEmpty()) return;
+        synchronized (env) {
+            write(txn -> seqs.forEach(seq -> journal.remove(txn, seq)));
+        }
+    }
+
+    /**
+     * Removes the edits which have been pushed from the edit journal.
+     *
+     * @param seq sequence number of the oldest edit which has not been pushed, or -1 if every edit has been
+     */
+    public void compactEditJournal(long seq)
+    {
+        synchronized (env) {
+            write(txn -> {
+                if (seq < 0) journal.clear(txn);
+                else journal.removeBefore(txn, seq);
+            });
+        }
+    }
+
+    /**
+     * Reads the edit journal.
+     *
+     * @return record of each edit, keyed by sequence number
+     */
+    public SortedMap<Long, byte[]> readEditJournal()
+    {
+        final SortedMap<Long, byte[]> ret = new TreeMap<>();
+        final Txn<ByteBuffer> txn = beginRead();
+        try {
+            journal.forEach(txn, ret::put);
+        } finally {
+            endRead();
+        }
+        return ret;
+    }
+
+    /**
+     * Rebuilds the reference index from the full object graph.  This only needs to happen once for a library
+     * created before the index existed.
+     */
+    private void rebuildReferenceIndex()
+    {
+        final List<Album> albums = albumDb.values();
+        final List<Artist> artists = artistDb.values();
+        final List<Genre> genres = genreDb.values();
+        final List<Label> labels = labelDb.values();
+        final List<Track> tracks = trackDb.values();
+        final List<Playlist> playlists = playlistDb.values();
+        final List<SavedResourceCollection<?>> collections = new ArrayList<>(playlists);
+        collections.add(getLikedSongs());
+        collections.add(getSavedAlbums());
+        for (SavedResourceCollection<?> c : collections) populateSavedResourcesLazily(c);
+
+        synchronized (env) {
+            write(txn -> {
+                for (Album a : albums) {
+                    referenceAlbum(txn, a);
+                    refs.addCandidate(txn, ReferenceIndex.nodeOf(ReferenceIndex.ALBUM, a.getKey()));
+                }
+                for (Artist a : artists) {
+                    referenceArtist(txn, a);
+                    refs.addCandidate(txn, ReferenceIndex.nodeOf(ReferenceIndex.ARTIST, a.getKey()));
+                }
+                for (Genre g : genres)
+                    refs.addCandidate(txn, ReferenceIndex.nodeOf(ReferenceIndex.GENRE, g.getKey()));
+                for (Label l : labels)
+                    refs.addCandidate(txn, ReferenceIndex.nodeOf(ReferenceIndex.LABEL, l.getKey()));
+                for (Track t : tracks) {
+                    referenceTrack(txn, t);
+                    refs.addCandidate(txn, ReferenceIndex.nodeOf(ReferenceIndex.TRACK, t.getKey()));
+                }
+                for (SavedResourceCollection<?> c : collections) {
+                    refs.setReferences(txn, ReferenceIndex.nodeOf(ReferenceIndex.COLLECTION, c.getKey()),
+                            referencesOf(c.getSavedResources()));
+                }
+            });
+            state.hasReferenceIndex = true;
+        }
     }
 
     public Cleanup cleanUnusedResources()
@@ -402,32 +1324,55 @@ public final class Library
         return new Cleanup();
     }
 
-    private <T extends LibraryResource> void doSave(final T resource, final Consumer<T> saveFunc, final byte action)
+    private <T extends LibraryResource> void doSave(final Txn<ByteBuffer> txn, final T resource,
+                                                    final BiConsumer<Txn<ByteBuffer>, T> saveFunc, final byte action)
     {
         byte curr = needsSaveStatus.getOrDefault(resource, NO_SAVE);
         if ((curr & action) == action) {
-            saveFunc.accept(resource);
-            curr &= (byte) ~action;
-            if (curr == 0) needsSaveStatus.remove(resource);
-            else needsSaveStatus.put(resource, curr);
+            saveFunc.accept(txn, resource);
+            markSaved(resource, curr, action);
         }
     }
 
-    private <T extends LibraryResource> Runnable getDoSave(final T resource, final Consumer<T> saveFunc)
+    private void markSaved(final LibraryResource resource, byte curr, final byte action)
+    {
+        if (savedMarks != null) savedMarks.putIfAbsent(resource, curr);
+        curr &= (byte) ~action;
+        if (curr == 0) needsSaveStatus.remove(resource);
+        else needsSaveStatus.put(resource, curr);
+    }
+
+    private <T extends LibraryResource> PendingSave getDoSave(final T resource,
+                                                              final BiConsumer<Txn<ByteBuffer>, T> saveFunc)
     {
-        return () -> doSave(resource, saveFunc, SHOULD_SAVE);
+        return new PendingSave(resource, txn -> doSave(txn, resource, saveFunc, SHOULD_SAVE));
     }
 
-    private <T extends LibraryResource> Runnable getDoSaveContents(final T resource, final Consumer<T> saveFunc)
+    private <T extends LibraryResource> PendingSave getDoSaveContents(final T resource,
+                                                                      final BiConsumer<Txn<ByteBuffer>, T> saveFunc)
     {
-        return () -> doSave(resource, saveFunc, SHOULD_SAVE_CONTENTS);
+        return new PendingSave(resource, txn -> doSave(txn, resource, saveFunc, SHOULD_SAVE_CONTENTS));
+    }
+
+    /**
+     * Queues a save, waking the background flusher if enough have piled up.  Must be called while synchronized on
+     * the lmdb env.
+     *
+     * @param save save to queue
+     */
+    private void enqueue(PendingSave save)
+    {
+        needsSave.add(save);
+        countPendingSaves();
+        if (flusher != null && needsSave.size() == flushThreshold) flusher.wake();
     }
 
     private <T extends LibraryResource> void markModified(final ResourceKV<T> db, final T t)
     {
         synchronized (env) {
+            pendingRecords.put(t, db.snapshot(t));
             if (needsSaveStatus.putIfAbsent(t, SHOULD_SAVE) == null) {
-                needsSave.add(getDoSave(t, db::save));
+                enqueue(getDoSave(t, db::save));
             }
         }
     }
@@ -448,100 +1393,525 @@ public final class Library
         markModified(albumDb, a);
     }
 
-    public void markModified(Artist a)
+    public void markModified(Artist a)
+    {
+        markModified(artistDb, a);
+    }
+
+    public void markModified(Genre g)
+    {
+        markModified(genreDb, g);
+    }
+
+    public void markModified(Label l)
+    {
+        markModified(labelDb, l);
+    }
+
+    public void markModified(Playlist p)
+    {
+        synchronized (env) {
+            pendingRecords.put(p, playlistDb.snapshot(p));
+            byte curr = needsSaveStatus.getOrDefault(p, NO_SAVE);
+            if ((curr & SHOULD_SAVE) == 0) {
+                enqueue(getDoSave(p, playlistDb::save));
+                needsSaveStatus.put(p, (byte) (curr | SHOULD_SAVE));
+            }
+        }
+    }
+
+    public void markContentsModified(Playlist p)
+    {
+        synchronized (env) {
+            snapshotContents(p);
+            byte curr = needsSaveStatus.getOrDefault(p, NO_SAVE);
+            if ((curr & SHOULD_SAVE_CONTENTS) == 0) {
+                enqueue(getDoSaveContents(p, this::savePendingContents));
+                needsSaveStatus.put(p, (byte) (curr | SHOULD_SAVE_CONTENTS));
+            }
+        }
+    }
+
+    public void markContentsModified(SavedResourceCollection<?> src)
+    {
+        if (src instanceof Playlist p) markContentsModified(p);
+        else synchronized (env) {
+            snapshotContents(src);
+            if (needsSaveStatus.putIfAbsent(src, SHOULD_SAVE_CONTENTS) == null) {
+                enqueue(getDoSaveContents(src, this::savePendingContents));
+            }
+        }
+    }
+
+    public void markModified(Track t)
+    {
+        markModified(trackDb, t);
+    }
+
+    /**
+     * Reports the counters of the resource caches, keyed by resource type.
+     *
+     * @return cache statistics of each resource type
+     */
+    public Map<String, CacheStats> getCacheStats()
+    {
+        final Map<String, CacheStats> ret = new LinkedHashMap<>();
+        for (ResourceKV<?> db : List.of(albumDb, artistDb, genreDb, labelDb, playlistDb, trackDb)) {
+            ret.put(db.dbKey, db.stats());
+        }
+        return ret;
+    }
+
+    public boolean hasModified()
+    {
+        synchronized (env) {
+            return !needsSave.isEmpty() || !failedSaves.isEmpty();
+        }
+    }
+
+    /*private static Byte getUnmodifiedMark(LibraryResource ignored, byte curr)
+    {
+        curr &= ~SHOULD_SAVE;
+        if (curr == 0) return null;
+        return curr;
+    }
+
+    public void unmarkModified(LibraryResource lr)
+    {
+        synchronized (env) {
+            needsSaveStatus.computeIfPresent(lr, Library::getUnmodifiedMark);
+        }
+    }*/
+
+    private static Byte getUnmodifiedContentsMark(LibraryResource ignored, byte curr)
+    {
+        curr &= ~SHOULD_SAVE_CONTENTS;
+        if (curr == 0) return null;
+        return curr;
+    }
+
+    public void unmarkContentsModified(SavedResourceCollection<?> src)
+    {
+        synchronized (env) {
+            needsSaveStatus.computeIfPresent(src, Library::getUnmodifiedContentsMark);
+            pendingContents.remove(src);
+        }
+    }
+
+    /**
+     * Prepares the library for an import into an empty library, such as the first download of an account.  Until
+     * <code>endBulkLoad()</code>, genres and labels are no longer written as soon as they are created, and modified
+     * resources are written in key order, appending to DBs which are still empty.  Does nothing if the library
+     * already holds tracks, albums or artists, or is already bulk loading.
+     *
+     * @return true if the library is now bulk loading, in which case <code>endBulkLoad()</code> must be called once
+     * the import finishes, whether or not it succeeds
+     */
+    public boolean beginBulkLoad()
+    {
+        synchronized (env) {
+            if (bulkLoading) return false;
+            final Txn<ByteBuffer> txn = beginRead();
+            try {
+                for (ResourceKV<?> db : List.of(albumDb, artistDb, trackDb)) {
+                    if (db.db.stat(txn).entries != 0) return false;
+                }
+            } finally {
+                endRead();
+            }
+            return bulkLoading = true;
+        }
+    }
+
+    /**
+     * Ends a bulk load begun by <code>beginBulkLoad()</code>, writing the resources it left pending in key order.
+     */
+    public void endBulkLoad()
+    {
+        final int batchSize = Spat.preferences.getInt(Spat.P_SAVE_BATCH_SIZE, DEFAULT_SAVE_BATCH_SIZE);
+        synchronized (env) {
+            if (!bulkLoading) return;
+            bulkLoading = false;
+            saveInKeyOrder(batchSize);
+        }
+    }
+
+    /**
+     * Writes all modified resources to the database.  Pending saves are grouped into as few write transactions as
+     * the <code>saveBatchSize</code> preference allows, so that either a whole batch is persisted or none of it is.
+     * The recorded fetch times and cached responses are committed afterwards.  Saves which failed before are tried
+     * again first.
+     *
+     * @throws IllegalStateException if a save failed even on its own, once every other save has been committed; the
+     *                               failed save is kept to be tried again by the next call
+     */
+    public void saveModified()
+    {
+        final int batchSize = Spat.preferences.getInt(Spat.P_SAVE_BATCH_SIZE, DEFAULT_SAVE_BATCH_SIZE);
+        synchronized (env) {
+            if (bulkLoading) saveInKeyOrder(batchSize);
+            for (int i = failedSaves.size() - 1; i >= 0; i--) needsSave.addFirst(failedSaves.get(i));
+            failedSaves.clear();
+            final List<PendingSave> batch = new ArrayList<>();
+            RuntimeException failure = null;
+            PendingSave r;
+            try {
+                while ((r = needsSave.poll()) != null) {
+                    batch.clear();
+                    do {
+                        batch.add(r);
+                    } while ((batchSize <= 0 || batch.size() < batchSize) && (r = needsSave.poll()) != null);
+                    failure = withFailure(failure, writeBatch(batch));
+                }
+            } finally {
+                countPendingSaves();
+            }
+            saveFetchTimes(0);
+            saveCachedResponses(0);
+            if (failure != null) throw failure;
+        }
+    }
+
+    /**
+     * Commits one batch of pending saves for the background flusher, followed by one batch each of fetch times and
+     * cached responses.  During a bulk load, the modified resources are first written in key order, as
+     * <code>endBulkLoad()</code> would.
+     *
+     * @return true if saves are still pending
+     * @throws IllegalStateException if a save failed even on its own, once the rest of the batch has been committed
+     */
+    private boolean flushBatch()
+    {
+        synchronized (env) {
+            if (bulkLoading) saveInKeyOrder(FLUSH_BATCH_SIZE);
+            final List<PendingSave> batch = new ArrayList<>();
+            PendingSave r;
+            while (batch.size() < FLUSH_BATCH_SIZE && (r = needsSave.poll()) != null) {
+                batch.add(r);
+            }
+            final RuntimeException failure;
+            try {
+                failure = batch.isEmpty() ? null : writeBatch(batch);
+            } finally {
+                countPendingSaves();
+            }
+            saveFetchTimes(FLUSH_BATCH_SIZE);
+            saveCachedResponses(FLUSH_BATCH_SIZE);
+            if (failure != null) throw failure;
+            return !needsSave.isEmpty() || !pendingFetches.isEmpty() || !pendingResponses.isEmpty();
+        }
+    }
+
+    /**
+     * Commits a batch of saves taken from the head of the queue.  If the write fails, each save is tried again in
+     * a write transaction of its own, so that one which cannot be written does not hold back the others; those
+     * which still fail are set aside in <code>failedSaves</code>.  Must be called while synchronized on the lmdb
+     * env.
+     *
+     * @param batch saves to commit
+     * @return the failure of the first save set aside, with those of the others suppressed, or null if every save
+     * was committed
+     */
+    private RuntimeException writeBatch(List<PendingSave> batch)
+    {
+        try {
+            write(txn -> batch.forEach(save -> save.body.accept(txn)));
+            return null;
+        } catch (Error e) {
+            for (int i = batch.size() - 1; i >= 0; i--) needsSave.addFirst(batch.get(i));
+            throw e;
+        } catch (RuntimeException e) {
+            if (batch.size() == 1) return setAside(batch.get(0), e);
+        }
+        RuntimeException failure = null;
+        for (int i = 0; i < batch.size(); i++) {
+            final PendingSave save = batch.get(i);
+            try {
+                write(save.body);
+            } catch (Error e) {
+                for (int j = batch.size() - 1; j >= i; j--) needsSave.addFirst(batch.get(j));
+                throw e;
+            } catch (RuntimeException e) {
+                failure = withFailure(failure, setAside(save, e));
+            }
+        }
+        return failure;
+    }
+
+    private RuntimeException setAside(PendingSave save, RuntimeException cause)
+    {
+        failedSaves.add(save);
+        return new IllegalStateException("Could not save `" + save.resource
+                + "'; it is kept to be tried again by the next save", cause);
+    }
+
+    private static RuntimeException withFailure(RuntimeException failure, RuntimeException next)
     {
-        markModified(artistDb, a);
+        if (failure == null) return next;
+        if (next != null) failure.addSuppressed(next);
+        return failure;
     }
 
-    public void markModified(Genre g)
-    {
-        markModified(genreDb, g);
+    /**
+     * Writes the modified resources of each type sorted by key, with the map grown once beforehand rather than
+     * checked as the writes go.  The queued saves of those resources are left to find nothing to do.
+     *
+     * @param batchSize number of resources written per write transaction, or 0 for no limit
+     */
+    private void saveInKeyOrder(int batchSize)
+    {
+        final List<ResourceKV<?>> dbs = List.of(albumDb, artistDb, genreDb, labelDb, playlistDb, trackDb);
+        final List<List<PendingRecord>> records = new ArrayList<>(dbs.size());
+        long bytes = 0;
+        for (ResourceKV<?> db : dbs) {
+            final List<PendingRecord> dbRecords = db.pendingInKeyOrder();
+            for (PendingRecord r : dbRecords) bytes += r.key.length + r.val.length;
+            records.add(dbRecords);
+        }
+        if (bytes == 0) return;
+
+        // leave room for half-full pages and the reference index
+        final long needed = (env.info().lastPageNumber + 1) * pageSize + bytes * 4;
+        if (state.mapSize < needed) {
+            setMapSize(needed);
+        }
+        for (int i = 0; i < dbs.size(); i++) {
+            dbs.get(i).writeInKeyOrder(records.get(i), batchSize);
+        }
     }
 
-    public void markModified(Label l)
+    /**
+     * Copies <code>val</code> into the value buffer.
+     *
+     * @param val serialized value
+     * @return the value buffer, ready to be written
+     */
+    private ByteBuffer valueOf(byte[] val)
     {
-        markModified(labelDb, l);
+        if (valBuf.capacity() < val.length) {
+            valBuf = ByteBuffer.allocateDirect(roundBufSize(val.length));
+            valMemBuf = MemoryBuffer.fromByteBuffer(valBuf);
+        }
+        return valBuf.clear().put(val).flip();
     }
 
-    public void markModified(Playlist p)
+    /**
+     * Rewrites every record of a library written with an older layout, in a single write transaction.  The
+     * reference index is dropped along the way and rebuilt by the next cleanup.
+     *
+     * @throws IOException if the upgraded state could not be saved
+     */
+    void upgrade()
+    throws IOException
     {
+        if (state.formatVersion >= FORMAT_VERSION) return;
         synchronized (env) {
-            byte curr = needsSaveStatus.getOrDefault(p, NO_SAVE);
-            if ((curr & SHOULD_SAVE) == 0) {
-                needsSave.add(getDoSave(p, playlistDb::save));
-                needsSaveStatus.put(p, (byte) (curr | SHOULD_SAVE));
+            // old and new records coexist until the transaction commits
+            final long used = (env.info().lastPageNumber + 1) * pageSize;
+            if (state.mapSize < used * 3) {
+                setMapSize(used * 3);
+            }
+            write(txn -> {
+                // the steps up to 6 read and write values as the old layouts had them
+                framedValues = state.formatVersion >= 6;
+                if (state.formatVersion < 1) {
+                    rewriteLegacyRecords(txn, albumDb.db, this::upgradeAlbum);
+                    rewriteLegacyRecords(txn, artistDb.db, this::upgradeArtist);
+                    rewriteLegacyRecords(txn, genreDb.db, null);
+                    rewriteLegacyRecords(txn, labelDb.db, null);
+                    rewriteLegacyRecords(txn, playlistDb.db, null);
+                    rewriteLegacyRecords(txn, trackDb.db, this::upgradeTrack);
+                    refs.clear(txn);
+                }
+                if (state.formatVersion < 2) {
+                    chunkSavedResourceLists(txn);
+                }
+                if (state.formatVersion < 3) {
+                    audioFeatures.clear(txn);
+                    reindex(txn, trackDb, audioFeatures);
+                }
+                if (state.formatVersion < 4) {
+                    names.clear(txn);
+                    reindex(txn, albumDb, names.of(ReferenceIndex.ALBUM));
+                    reindex(txn, artistDb, names.of(ReferenceIndex.ARTIST));
+                    reindex(txn, trackDb, names.of(ReferenceIndex.TRACK));
+                }
+                if (state.formatVersion < 5) {
+                    rows.clear(txn);
+                    reindex(txn, albumDb, rows.of(ReferenceIndex.ALBUM));
+                    reindex(txn, artistDb, rows.of(ReferenceIndex.ARTIST));
+                    reindex(txn, trackDb, rows.of(ReferenceIndex.TRACK));
+                }
+                if (state.formatVersion < 6) {
+                    for (ResourceKV<?> db : List.of(albumDb, artistDb, genreDb, labelDb, playlistDb, trackDb)) {
+                        frameValues(txn, db.db);
+                    }
+                    frameValues(txn, savedResourceListDb);
+                    framedValues = true;
+                }
+                if (state.formatVersion < 7) {
+                    fetchTimes.clear(txn);
+                    reindex(txn, albumDb, fetchTimes.of(ReferenceIndex.ALBUM));
+                    reindex(txn, artistDb, fetchTimes.of(ReferenceIndex.ARTIST));
+                    reindex(txn, trackDb, fetchTimes.of(ReferenceIndex.TRACK));
+                }
+                if (state.formatVersion < 8) {
+                    // responses were keyed by request URI
+                    responses.clear(txn);
+                }
+            });
+            if (state.formatVersion < 1) {
+                state.hasReferenceIndex = false;
             }
+            state.formatVersion = FORMAT_VERSION;
+            state.saveData();
         }
     }
 
-    public void markContentsModified(Playlist p)
-    {
-        synchronized (env) {
-            byte curr = needsSaveStatus.getOrDefault(p, NO_SAVE);
-            if ((curr & SHOULD_SAVE_CONTENTS) == 0) {
-                needsSave.add(getDoSaveContents(p, this::depopulateSavedResources));
-                needsSaveStatus.put(p, (byte) (curr | SHOULD_SAVE_CONTENTS));
+    /**
+     * Replaces every record in <code>db</code> with one keyed by the current key encoding.
+     *
+     * @param txn      write transaction
+     * @param db       DB to rewrite
+     * @param upgrader copies a value from the first buffer to the second in the current layout, or null if the
+     *                 value is unchanged
+     */
+    private void rewriteLegacyRecords(Txn<ByteBuffer> txn, Dbi<ByteBuffer> db,
+                                      BiConsumer<MemoryBuffer, MemoryBuffer> upgrader)
+    {
+        final List<String> keys = new ArrayList<>();
+        final List<byte[]> vals = new ArrayList<>();
+        try (Cursor<ByteBuffer> c = db.openCursor(txn)) {
+            if (c.first()) {
+                do {
+                    keys.add(readString(MemoryBuffer.fromByteBuffer(c.key())));
+                    final MemoryBuffer in = MemoryBuffer.fromByteBuffer(c.val());
+                    if (upgrader == null) {
+                        vals.add(in.getBytes(0, in.size()));
+                    } else {
+                        final MemoryBuffer out = MemoryBuffer.newHeapBuffer(in.size());
+                        upgrader.accept(in, out);
+                        vals.add(out.getBytes(0, out.writerIndex()));
+                    }
+                    c.delete();
+                } while (c.next());
             }
         }
+        for (int i = 0; i < keys.size(); i++) {
+            db.put(txn, encodeKey(keys.get(i)), valueOf(vals.get(i)));
+        }
     }
 
-    public void markContentsModified(SavedResourceCollection<?> src)
+    /**
+     * Adds every resource in <code>db</code> to an index which did not exist when they were written.
+     *
+     * @param txn   write transaction
+     * @param db    DB to read
+     * @param index index to fill
+     */
+    private <T extends LibraryResource> void reindex(Txn<ByteBuffer> txn, ResourceKV<T> db, SecondaryIndex<T> index)
     {
-        if (src instanceof Playlist p) markContentsModified(p);
-        else synchronized (env) {
-            if (needsSaveStatus.putIfAbsent(src, SHOULD_SAVE_CONTENTS) == null) {
-                needsSave.add(getDoSaveContents(src, this::depopulateSavedResources));
+        try (CursorIterable<ByteBuffer> it = db.db.iterate(txn)) {
+            for (CursorIterable.KeyVal<ByteBuffer> kv : it) {
+                index.put(txn, db.deserializer.apply(MemoryBuffer.fromByteBuffer(unframed(kv.val()))));
             }
         }
     }
 
-    public void markModified(Track t)
-    {
-        markModified(trackDb, t);
+    /**
+     * Frames every value in <code>db</code>, which was written before values were framed.  The headers of saved
+     * resource lists are left as they are.
+     *
+     * @param txn write transaction
+     * @param db  DB to rewrite
+     */
+    private void frameValues(Txn<ByteBuffer> txn, Dbi<ByteBuffer> db)
+    {
+        final ByteBuffer k = keyBuf.get();
+        try (Cursor<ByteBuffer> c = db.openCursor(txn)) {
+            if (c.first()) {
+                do {
+                    final ByteBuffer key = c.key();
+                    if (db == savedResourceListDb && key.getInt(key.limit() - Integer.BYTES) == 0) continue;
+                    k.clear().put(key).flip();
+                    c.put(k, codec.encode(c.val()), PutFlags.MDB_CURRENT);
+                } while (c.next());
+            }
+        }
     }
 
-    public boolean hasModified()
+    private static void copyFuryObject(MemoryBuffer in, MemoryBuffer out)
     {
-        synchronized (env) {
-            return !needsSave.isEmpty();
-        }
+        final int start = in.readerIndex();
+        fury.deserialize(in);
+        out.writeBytes(in.getBytes(start, in.readerIndex() - start));
     }
 
-    /*private static Byte getUnmodifiedMark(LibraryResource ignored, byte curr)
+    private void upgradeAlbum(MemoryBuffer in, MemoryBuffer out)
     {
-        curr &= ~SHOULD_SAVE;
-        if (curr == 0) return null;
-        return curr;
+        copyFuryObject(in, out);
+        KeyCodec.writeField(out, readLegacyKeyField(in));
+        KeyCodec.writeArray(out, readLegacyKeyArray(in));
+        KeyCodec.writeArray(out, readLegacyKeyArray(in));
+        KeyCodec.writeArray(out, readLegacyKeyArray(in));
     }
 
-    public void unmarkModified(LibraryResource lr)
+    private void upgradeArtist(MemoryBuffer in, MemoryBuffer out)
     {
-        synchronized (env) {
-            needsSaveStatus.computeIfPresent(lr, Library::getUnmodifiedMark);
-        }
-    }*/
+        copyFuryObject(in, out);
+        KeyCodec.writeArray(out, readLegacyKeyArray(in));
+    }
 
-    private static Byte getUnmodifiedContentsMark(LibraryResource ignored, byte curr)
+    private void upgradeTrack(MemoryBuffer in, MemoryBuffer out)
     {
-        curr &= ~SHOULD_SAVE_CONTENTS;
-        if (curr == 0) return null;
-        return curr;
+        copyFuryObject(in, out);
+        KeyCodec.writeField(out, readLegacyKeyField(in));
+        KeyCodec.writeArray(out, readLegacyKeyArray(in));
     }
 
-    public void unmarkContentsModified(SavedResourceCollection<?> src)
-    {
-        synchronized (env) {
-            needsSaveStatus.computeIfPresent(src, Library::getUnmodifiedContentsMark);
+    /**
+     * Splits every saved resource list, which used to be stored as a single value, into chunks.
+     *
+     * @param txn write transaction
+     */
+    private void chunkSavedResourceLists(Txn<ByteBuffer> txn)
+    {
+        final List<String> keys = new ArrayList<>();
+        final List<List<SavedResource<?>>> lists = new ArrayList<>();
+        upgrading = true;
+        try (Cursor<ByteBuffer> c = savedResourceListDb.openCursor(txn)) {
+            if (c.first()) {
+                do {
+                    keys.add(state.formatVersion < 1
+                            ? readString(MemoryBuffer.fromByteBuffer(c.key())) : decodeKey(c.key()));
+                    @SuppressWarnings("unchecked")
+                    List<SavedResource<?>> list = (List<SavedResource<?>>) fury.deserialize(MemoryBuffer.fromByteBuffer(c.val()));
+                    lists.add(list);
+                    c.delete();
+                } while (c.next());
+            }
+        } finally {
+            upgrading = false;
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            final List<SavedResource<?>> list = lists.get(i);
+            list.removeIf(sr -> sr.getResource() == null);
+            writeSavedResources(txn, keys.get(i), list);
         }
     }
 
-    public void saveModified()
+    /**
+     * Copies the database to <code>dbDir</code>, leaving out free pages.  Readers carry on while the copy is made,
+     * but writers wait for it, so that the copy matches the state returned with it.
+     *
+     * @param dbDir empty directory to copy to
+     * @return state of the copy
+     */
+    SaveDirectory copyTo(File dbDir)
     {
         synchronized (env) {
-            Runnable r;
-            while ((r = needsSave.poll()) != null)
-                r.run();
-            growMap();
+            env.copy(dbDir, CopyFlags.MDB_CP_COMPACT);
+            return state.copyFor(dbDir);
         }
     }
 
@@ -549,52 +1919,77 @@ public final class Library
     public void close()
     throws IOException
     {
+        if (flusher != null) flusher.stop();
         synchronized (env) {
+            try {
+                // not worth keeping the library from closing over
+                saveFetchTimes(0);
+                saveCachedResponses(0);
+            } catch (RuntimeException e) {
+                System.err.println("WARNING: could not save fetch times or cached responses: " + e);
+            }
             albumDb.close();
             artistDb.close();
             genreDb.close();
             labelDb.close();
             playlistDb.close();
             trackDb.close();
+            refs.close();
+            audioFeatures.close();
+            names.close();
+            journal.close();
+            rows.close();
+            fetchTimes.close();
+            responses.close();
+            codec.close();
+            unregisterMBeans();
             env.close();
             state.saveData();
         }
     }
 
-    private void writeResourceField(MemoryBuffer buffer, LibraryResource field)
+    private static void addReference(Collection<String> referees, char type, String key)
     {
-        fury.writeString(buffer, field == null ? "" : field.getKey());
+        if (key != null) referees.add(ReferenceIndex.nodeOf(type, key));
     }
 
-    private void writeResourceArray(MemoryBuffer buffer, LibraryResource[] resources)
+    private static void addReferences(Collection<String> referees, char type, String[] keys)
     {
-        if (resources == null) {
-            buffer.writeInt32(0);
-        } else {
-            int len = resources.length;
-            buffer.writeInt32(len);
-            if (len > 0) {
-                for (LibraryResource resource : resources) {
-                    fury.writeString(buffer, resource.getKey());
-                }
+        if (keys != null) {
+            for (String key : keys) {
+                addReference(referees, type, key);
             }
         }
     }
 
-    private void handleFinalizationQueue()
+    private static List<String> referencesOf(List<? extends SavedResource<?>> savedResources)
     {
-        Runnable f;
-        while ((f = needsFinalize.poll()) != null)
-            f.run();
+        final List<String> referees = new ArrayList<>(savedResources.size());
+        for (SavedResource<?> sr : savedResources) {
+            // the key is enough, so the resource itself need not be read
+            referees.add(ReferenceIndex.nodeOf(sr instanceof SavedAlbum ? ReferenceIndex.ALBUM : ReferenceIndex.TRACK,
+                    sr.getKey()));
+        }
+        return referees;
     }
 
     private void writeAlbum(MemoryBuffer buffer, Album album)
     {
         fury.serialize(buffer, album);
-        writeResourceField(buffer, album.getLabel());
-        writeResourceArray(buffer, album.getArtists());
-        writeResourceArray(buffer, album.getTracks());
-        writeResourceArray(buffer, album.getGenres());
+        KeyCodec.writeField(buffer, album.getLabelKey());
+        KeyCodec.writeArray(buffer, album.getArtistKeys());
+        KeyCodec.writeArray(buffer, album.getTrackKeys());
+        KeyCodec.writeArray(buffer, album.getGenreKeys());
+    }
+
+    private void referenceAlbum(Txn<ByteBuffer> txn, Album album)
+    {
+        final List<String> referees = new ArrayList<>();
+        addReference(referees, ReferenceIndex.LABEL, album.getLabelKey());
+        addReferences(referees, ReferenceIndex.ARTIST, album.getArtistKeys());
+        addReferences(referees, ReferenceIndex.TRACK, album.getTrackKeys());
+        addReferences(referees, ReferenceIndex.GENRE, album.getGenreKeys());
+        refs.setReferences(txn, ReferenceIndex.nodeOf(ReferenceIndex.ALBUM, album.getKey()), referees);
     }
 
     private static <T> Function<MemoryBuffer, T> readerFor(Class<T> valueClass)
@@ -602,42 +1997,35 @@ public final class Library
         return buffer -> valueClass.cast(fury.deserialize(buffer));
     }
 
-    private Runnable albumFinalizer(final Album album, MemoryBuffer buffer)
+    private void albumFinalizer(final Album album, MemoryBuffer buffer)
     {
-        final String labelKey = readResourceKeyField(buffer);
-        final String[] artistKeys = readResourceKeyArray(buffer);
-        final String[] trackKeys = readResourceKeyArray(buffer);
-        final String[] genreKeys = readResourceKeyArray(buffer);
-        return () -> {
-            readResourceField(labelKey, labelDb::read, album::setLabel);
-            album.setArtists(readResourceArray(Artist[]::new, artistKeys, artistDb::read));
-            album.setTracks(readResourceArray(Track[]::new, trackKeys, trackDb::read));
-            album.setGenres(readResourceArray(Genre[]::new, genreKeys, genreDb::read));
-        };
+        album.setLabel(lazyResource(KeyCodec.readField(buffer), labelDb));
+        album.setArtists(lazyResourceArray(KeyCodec.readArray(buffer), Artist[]::new, artistDb));
+        album.setTracks(lazyResourceArray(KeyCodec.readArray(buffer), Track[]::new, trackDb));
+        album.setGenres(lazyResourceArray(KeyCodec.readArray(buffer), Genre[]::new, genreDb));
     }
 
-    private Runnable artistFinalizer(final Artist artist, MemoryBuffer buffer)
+    private void artistFinalizer(final Artist artist, MemoryBuffer buffer)
     {
-        final String[] genreKeys = readResourceKeyArray(buffer);
-        return () -> artist.setGenres(readResourceArray(Genre[]::new, genreKeys, genreDb::read));
+        artist.setGenres(lazyResourceArray(KeyCodec.readArray(buffer), Genre[]::new, genreDb));
     }
 
-    private Runnable trackFinalizer(final Track track, MemoryBuffer buffer)
+    private void trackFinalizer(final Track track, MemoryBuffer buffer)
     {
-        final String albumKey = readResourceKeyField(buffer);
-        final String[] artistKeys = readResourceKeyArray(buffer);
-        return () -> {
-            readResourceField(albumKey, albumDb::read, track::setAlbum);
-            track.setArtists(readResourceArray(Artist[]::new, artistKeys, artistDb::read));
-        };
+        track.setAlbum(lazyResource(KeyCodec.readField(buffer), albumDb));
+        track.setArtists(lazyResourceArray(KeyCodec.readArray(buffer), Artist[]::new, artistDb));
     }
 
-    private <T extends LibraryResource> Function<MemoryBuffer, T> finalizingReaderFor(Class<T> valueClass,
-                                                                                      BiFunction<T, MemoryBuffer, Runnable> finalizer)
+    /**
+     * Creates a reader which deserializes a resource and then lets <code>finalizer</code> read the keys of the
+     * resources it references.  The references themselves are read on first access.
+     */
+    private static <T extends LibraryResource> Function<MemoryBuffer, T> finalizingReaderFor(Class<T> valueClass,
+                                                                                             BiConsumer<T, MemoryBuffer> finalizer)
     {
         return buffer -> {
             T ret = valueClass.cast(fury.deserialize(buffer));
-            needsFinalize.add(finalizer.apply(ret, buffer));
+            finalizer.accept(ret, buffer);
             return ret;
         };
     }
@@ -645,21 +2033,34 @@ public final class Library
     private void writeArtist(MemoryBuffer buffer, Artist artist)
     {
         fury.serialize(buffer, artist);
-        writeResourceArray(buffer, artist.getGenres());
+        KeyCodec.writeArray(buffer, artist.getGenreKeys());
+    }
+
+    private void referenceArtist(Txn<ByteBuffer> txn, Artist artist)
+    {
+        final List<String> referees = new ArrayList<>();
+        addReferences(referees, ReferenceIndex.GENRE, artist.getGenreKeys());
+        refs.setReferences(txn, ReferenceIndex.nodeOf(ReferenceIndex.ARTIST, artist.getKey()), referees);
     }
 
     private void writeTrack(MemoryBuffer buffer, Track track)
     {
         fury.serialize(buffer, track);
-        writeResourceField(buffer, track.getAlbum());
-        writeResourceArray(buffer, track.getArtists());
+        KeyCodec.writeField(buffer, track.getAlbumKey());
+        KeyCodec.writeArray(buffer, track.getArtistKeys());
+    }
+
+    private void referenceTrack(Txn<ByteBuffer> txn, Track track)
+    {
+        final List<String> referees = new ArrayList<>();
+        addReference(referees, ReferenceIndex.ALBUM, track.getAlbumKey());
+        addReferences(referees, ReferenceIndex.ARTIST, track.getArtistKeys());
+        refs.setReferences(txn, ReferenceIndex.nodeOf(ReferenceIndex.TRACK, track.getKey()), referees);
     }
 
     private <T extends LibraryResource> T retrieveOrCreate(ResourceKV<T> db, String key, Function<String, T> func)
     {
-        T ret = db.readOrCreate(key, func);
-        handleFinalizationQueue();
-        return ret;
+        return db.readOrCreate(key, func);
     }
 
     private void ensureValOffHeap()
@@ -674,16 +2075,47 @@ public final class Library
         }
     }
 
-    private String decodeKey(ByteBuffer keyBuf)
+    /**
+     * Frames a serialized value for storage.  Must be called while synchronized on the lmdb env.
+     *
+     * @param val serialized value
+     * @return the value to store, valid until the next call
+     */
+    private ByteBuffer framed(ByteBuffer val)
+    {
+        return framedValues ? codec.encode(val) : val;
+    }
+
+    /**
+     * Returns the serialized value inside a stored value.
+     *
+     * @param val stored value
+     * @return serialized value
+     */
+    private ByteBuffer unframed(ByteBuffer val)
+    {
+        return framedValues ? codec.decode(val) : val;
+    }
+
+    private static String decodeKey(ByteBuffer keyBuf)
     {
-        return fury.readString(MemoryBuffer.fromByteBuffer(keyBuf));
+        return KeyCodec.decode(keyBuf);
     }
 
+    /**
+     * Encodes a key into the calling thread's key buffer, which stays valid until the thread encodes another key.
+     *
+     * @param key key to encode
+     * @return buffer containing the encoded key
+     */
     private ByteBuffer encodeKey(String key)
     {
-        keyMemBuf.writerIndex(0);
-        fury.writeString(keyMemBuf, key);
-        return keyBuf.limit(keyMemBuf.writerIndex()).rewind();
+        return KeyCodec.encode(keyBuf.get().clear(), key).flip();
+    }
+
+    private ByteBuffer encodeChunkKey(String key, int chunk)
+    {
+        return KeyCodec.encode(keyBuf.get().clear(), key).putInt(chunk).flip();
     }
 
     private void evictResourceCacheNodes()
@@ -700,15 +2132,16 @@ public final class Library
             extends Serializer<T>
     {
         private final Supplier<T> constructor;
-        private final BiFunction<T, MemoryBuffer, Runnable> finalizer;
+        private final BiConsumer<T, MemoryBuffer> keyReader;
 
-        private SavedResourceSerializer(Class<T> type,
+        private SavedResourceSerializer(Fury fury,
+                                        Class<T> type,
                                         Supplier<T> constructor,
-                                        BiFunction<T, MemoryBuffer, Runnable> finalizer)
+                                        BiConsumer<T, MemoryBuffer> keyReader)
         {
-            super(Library.fury, type);
+            super(fury, type);
             this.constructor = constructor;
-            this.finalizer = finalizer;
+            this.keyReader = keyReader;
         }
 
         @Override
@@ -716,7 +2149,7 @@ public final class Library
         {
             T t = constructor.get();
             t.setAddedAt((ZonedDateTime) fury.readNonRef(buffer));
-            needsFinalize.add(finalizer.apply(t, buffer));
+            keyReader.accept(t, buffer);
             return t;
         }
 
@@ -724,7 +2157,7 @@ public final class Library
         public void write(MemoryBuffer buffer, T value)
         {
             fury.writeNonRef(buffer, value.addedAt());
-            fury.writeString(buffer, value.getResource().getKey());
+            KeyCodec.writeField(buffer, value.getKey());
         }
     }
 
@@ -732,77 +2165,331 @@ public final class Library
             implements AutoCloseable
     {
         private final Class<T> valueClass;
+        private final char refType;
         private final boolean shouldCommitOnInstantiation;
         private final Dbi<ByteBuffer> db;
+        private final String dbKey;
+        /**
+         * Second level; holds every resource of this type which is still reachable elsewhere.
+         */
         private final Map<String, ResourceCacheNode> cache;
+        /**
+         * First level; keeps the most recently used resources reachable so the GC cannot clear them.
+         */
+        private final LinkedHashMap<String, LibraryResource> hot;
+        private final int hotCapacity;
+        private long hits;
+        private long weakHits;
+        private long misses;
+        private long evictions;
         private final BiConsumer<MemoryBuffer, T> serializer;
+        private final BiConsumer<Txn<ByteBuffer>, T> referencer;
         private final Function<MemoryBuffer, T> deserializer;
+        private final ResourceStoreMetrics metrics;
+        private final List<SecondaryIndex<T>> indexes = new ArrayList<>();
 
         private ResourceKV(Class<T> valueClass,
                            String dbKey,
+                           char refType,
                            boolean shouldCommitOnInstantiation,
                            BiConsumer<MemoryBuffer, T> serializer,
+                           BiConsumer<Txn<ByteBuffer>, T> referencer,
                            Function<MemoryBuffer, T> deserializer)
         {
             this.valueClass = valueClass;
+            this.dbKey = dbKey;
+            this.refType = refType;
             this.shouldCommitOnInstantiation = shouldCommitOnInstantiation;
             synchronized (env) {
                 this.db = env.openDbi(dbKey, DbiFlags.MDB_CREATE);
             }
             cache = new HashMap<>();
+            hotCapacity = Math.max(0, Spat.preferences.getInt(Spat.P_CACHE_SIZE, DEFAULT_CACHE_SIZE));
+            hot = new LinkedHashMap<>(16, 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, LibraryResource> eldest)
+                {
+                    if (size() > hotCapacity) {
+                        evictions++;
+                        return true;
+                    }
+                    return false;
+                }
+            };
 
             this.serializer = serializer;
+            this.referencer = referencer;
             this.deserializer = deserializer;
+            metrics = new ResourceStoreMetrics(this::stats);
         }
 
-        private void save(T obj)
+        /**
+         * Writes a resource as it was serialized when it was last marked.  Must be called while synchronized on
+         * the lmdb env.
+         *
+         * @param txn write transaction
+         * @param obj resource marked by <code>markModified</code>
+         */
+        private void save(Txn<ByteBuffer> txn, T obj)
         {
-            synchronized (env) {
-                put(encodeKey(obj.getKey()), obj);
+            final byte[] val = pendingRecords.get(obj);
+            final long start = System.nanoTime();
+            final ByteBuffer framed = framed(valueOf(val));
+            db.put(txn, encodeKey(obj.getKey()), framed);
+            metrics.recordWrite(framed.remaining(), System.nanoTime() - start);
+            index(txn, obj.getKey(), detached(val));
+        }
+
+        /**
+         * Serializes a resource for <code>save</code>.  Must be called while synchronized on the lmdb env, on the
+         * thread which modifies the resource.
+         *
+         * @param obj resource to serialize
+         * @return serialized resource, not yet framed
+         */
+        private byte[] snapshot(T obj)
+        {
+            valBuf.clear();
+            valMemBuf.writerIndex(0);
+            serializer.accept(valMemBuf, obj);
+            ensureValOffHeap();
+            final byte[] ret = new byte[valBuf.remaining()];
+            valBuf.get(valBuf.position(), ret);
+            return ret;
+        }
+
+        /**
+         * Reads back a serialized resource, apart from the cache, for the indexes to read instead of the resource
+         * itself.  Resources which have no references or indexes are not read.
+         *
+         * @param val serialized resource, not framed
+         * @return the copy, or null if nothing needs it
+         */
+        private T detached(byte[] val)
+        {
+            if (referencer == null && indexes.isEmpty()) return null;
+            return deserializer.apply(MemoryBuffer.fromByteArray(val));
+        }
+
+        /**
+         * Updates the references and indexes of a resource which was just written.
+         *
+         * @param txn write transaction
+         * @param key key of the resource
+         * @param val the resource, or a copy of it from <code>detached</code>
+         */
+        private void index(Txn<ByteBuffer> txn, String key, T val)
+        {
+            if (refType != ReferenceIndex.COLLECTION) {
+                // newly written resources stay candidates until they are found reachable
+                refs.addCandidate(txn, ReferenceIndex.nodeOf(refType, key));
             }
+            if (val == null) return;
+            if (referencer != null) referencer.accept(txn, val);
+            for (SecondaryIndex<T> index : indexes) index.put(txn, val);
         }
 
         private T read(String key)
         {
+            LibraryResource res = tryFromCache(key);
+            if (res != null) return valueClass.cast(res);
+            final T ret = tryFromDB(encodeKey(key));
+            return ret == null ? null : cacheOrGet(ret);
+        }
+
+        private T readOrCreate(String key, Function<String, T> func)
+        {
+            evictResourceCacheNodes();
+            T obj = read(key);
+            if (obj != null || func == null) return obj;
             synchronized (env) {
-                LibraryResource res = tryFromCache(key);
-                T ret;
-                if (res == null) {
-                    final ByteBuffer keyBuf = encodeKey(key);
-                    ret = tryFromDB(keyBuf);
-                    if (ret != null) putInCache(ret);
+                // another thread may have created it while we were reading
+                LibraryResource res;
+                synchronized (rq) {
+                    res = peekCache(key);
+                }
+                if (res != null) return valueClass.cast(res);
+                final ByteBuffer keyBuf = encodeKey(key);
+                obj = tryFromDB(keyBuf);
+                if (obj == null) {
+                    obj = func.apply(key);
+                    if (shouldCommitOnInstantiation) {
+                        if (bulkLoading) markModified(this, obj);
+                        else put(keyBuf, obj);
+                    }
+                }
+                return cacheOrGet(obj);
+            }
+        }
+
+        /**
+         * Reads several resources at once.  Keys which miss the cache are sorted by their encoded form and looked
+         * up with one cursor, so that neighbouring keys share pages.  Resources which do not exist are created in a
+         * second pass of the cursor, while synchronized on the lmdb env, and those which are committed on
+         * instantiation are written together in one write transaction.
+         *
+         * @param keys keys to read
+         * @param func creates a resource which does not exist, or null to leave it out
+         * @return resources by key, in the order of <code>keys</code>
+         */
+        private Map<String, T> readOrCreateAll(Collection<String> keys, Function<String, T> func)
+        {
+            evictResourceCacheNodes();
+            final Map<String, T> ret = new LinkedHashMap<>();
+            // lmdb's default key order
+            final SortedMap<byte[], String> missing = new TreeMap<>(Arrays::compareUnsigned);
+            final ByteBuffer k = keyBuf.get();
+            LibraryResource res;
+            for (String key : keys) {
+                if (ret.containsKey(key)) continue;
+                if ((res = tryFromCache(key)) != null) {
+                    ret.put(key, valueClass.cast(res));
+                } else {
+                    ret.put(key, null);
+                    KeyCodec.encode(k.clear(), key).flip();
+                    final byte[] encoded = new byte[k.remaining()];
+                    k.get(encoded);
+                    missing.put(encoded, key);
+                }
+            }
+
+            if (!missing.isEmpty()) {
+                final List<T> found = new ArrayList<>(missing.size());
+                final Txn<ByteBuffer> txn = beginRead();
+                try (Cursor<ByteBuffer> c = db.openCursor(txn)) {
+                    for (byte[] encoded : missing.keySet()) {
+                        final long start = System.nanoTime();
+                        if (c.get(k.clear().put(encoded).flip(), GetOp.MDB_SET_KEY)) {
+                            found.add(deserialize(c.val(), start));
+                        }
+                    }
+                } finally {
+                    endRead();
+                }
+                for (T obj : found) {
+                    obj = cacheOrGet(obj);
+                    ret.put(obj.getKey(), obj);
+                }
+                missing.values().removeIf(key -> ret.get(key) != null);
+            }
+
+            if (!missing.isEmpty()) {
+                if (func == null) {
+                    ret.values().removeIf(Objects::isNull);
                 } else {
-                    ret = valueClass.cast(res);
-                    putInCache(ret);
+                    createAll(missing, func, ret);
                 }
-                return ret;
             }
+            return ret;
         }
 
-        private T readOrCreate(String key, Function<String, T> func)
+        /**
+         * Creates the resources which <code>readOrCreateAll</code> did not find, unless another thread created them
+         * first.
+         *
+         * @param missing keys which were not found, by their encoded form
+         * @param func    creates a resource which does not exist
+         * @param ret     receives the resources by key
+         */
+        private void createAll(SortedMap<byte[], String> missing, Function<String, T> func, Map<String, T> ret)
         {
+            final ByteBuffer k = keyBuf.get();
+            final List<T> created = new ArrayList<>();
             synchronized (env) {
-                evictResourceCacheNodes();
-                LibraryResource res = tryFromCache(key);
-                T obj;
-                if (res == null) {
-                    final ByteBuffer keyBuf = encodeKey(key);
-                    res = tryFromDB(keyBuf);
-                    if (res == null) {
-                        if (func == null) {
-                            return null;
-                        } else {
-                            obj = func.apply(key);
-                            if (shouldCommitOnInstantiation) put(keyBuf, obj);
+                final Txn<ByteBuffer> readTxn = beginRead();
+                try (Cursor<ByteBuffer> c = db.openCursor(readTxn)) {
+                    for (Map.Entry<byte[], String> e : missing.entrySet()) {
+                        final String key = e.getValue();
+                        T obj = peek(key);
+                        if (obj == null) {
+                            final long start = System.nanoTime();
+                            if (c.get(k.clear().put(e.getKey()).flip(), GetOp.MDB_SET_KEY)) {
+                                obj = deserialize(c.val(), start);
+                            } else {
+                                obj = func.apply(key);
+                                if (shouldCommitOnInstantiation) created.add(obj);
+                            }
+                            obj = cacheOrGet(obj);
                         }
+                        ret.put(key, obj);
+                    }
+                } finally {
+                    endRead();
+                }
+                if (!created.isEmpty()) {
+                    if (bulkLoading) {
+                        for (T obj : created) markModified(this, obj);
                     } else {
-                        obj = valueClass.cast(res);
+                        write(txn -> {
+                            for (T obj : created) put(txn, encodeKey(obj.getKey()), obj);
+                        });
                     }
-                    putInCache(obj);
-                } else {
-                    obj = valueClass.cast(res);
                 }
-                return obj;
+            }
+        }
+
+        /**
+         * Frames the snapshot of every resource of this type which is waiting to be saved.  Must be called while
+         * synchronized on the lmdb env.
+         *
+         * @return the serialized resources, sorted in lmdb's key order
+         */
+        private List<PendingRecord> pendingInKeyOrder()
+        {
+            final List<PendingRecord> ret = new ArrayList<>();
+            final ByteBuffer k = keyBuf.get();
+            for (Map.Entry<LibraryResource, Byte> e : needsSaveStatus.entrySet()) {
+                if ((e.getValue() & SHOULD_SAVE) != 0 && valueClass.isInstance(e.getKey())) {
+                    final T obj = valueClass.cast(e.getKey());
+                    KeyCodec.encode(k.clear(), obj.getKey()).flip();
+                    final byte[] key = new byte[k.remaining()];
+                    k.get(key);
+                    final byte[] snapshot = pendingRecords.get(obj);
+                    final ByteBuffer framed = framed(valueOf(snapshot));
+                    final byte[] val = new byte[framed.remaining()];
+                    framed.get(framed.position(), val);
+                    ret.add(new PendingRecord(key, val, snapshot, obj));
+                }
+            }
+            ret.sort((a, b) -> Arrays.compareUnsigned(a.key, b.key));
+            return ret;
+        }
+
+        /**
+         * Writes records returned by <code>pendingInKeyOrder()</code>, appending them if the DB is empty, and
+         * marks their resources saved.  Must be called while synchronized on the lmdb env.
+         *
+         * @param records   records sorted in key order
+         * @param batchSize number of records written per write transaction, or 0 for no limit
+         */
+        private void writeInKeyOrder(List<PendingRecord> records, int batchSize)
+        {
+            if (records.isEmpty()) return;
+            final boolean append;
+            final Txn<ByteBuffer> readTxn = beginRead();
+            try {
+                append = db.stat(readTxn).entries == 0;
+            } finally {
+                endRead();
+            }
+            final ByteBuffer k = keyBuf.get();
+            final int size = records.size();
+            final int step = batchSize <= 0 ? size : batchSize;
+            for (int from = 0; from < size; from += step) {
+                final List<PendingRecord> batch = records.subList(from, Math.min(size, from + step));
+                write(txn -> {
+                    for (PendingRecord r : batch) {
+                        final T obj = valueClass.cast(r.resource);
+                        final long start = System.nanoTime();
+                        k.clear().put(r.key).flip();
+                        if (append) db.put(txn, k, valueOf(r.val), PutFlags.MDB_APPEND);
+                        else db.put(txn, k, valueOf(r.val));
+                        metrics.recordWrite(r.val.length, System.nanoTime() - start);
+                        index(txn, obj.getKey(), detached(r.snapshot));
+                        markSaved(obj, needsSaveStatus.get(obj), SHOULD_SAVE);
+                    }
+                });
             }
         }
 
@@ -812,32 +2499,31 @@ public final class Library
             T obj;
             ByteBuffer valBuf;
             Set<String> keysFound = new HashSet<>();
-            synchronized (env) {
-                evictResourceCacheNodes();
+            evictResourceCacheNodes();
 
-                synchronized (rq) {
-                    for (ResourceCacheNode cacheNode : cache.values()) {
-                        r = cacheNode.get();
-                        if (r != null) {
-                            keysFound.add(r.getKey());
-                            collection.add(valueClass.cast(r));
-                        }
+            synchronized (rq) {
+                for (ResourceCacheNode cacheNode : cache.values()) {
+                    r = cacheNode.get();
+                    if (r != null) {
+                        keysFound.add(r.getKey());
+                        collection.add(valueClass.cast(r));
                     }
                 }
+            }
 
-                try (Txn<ByteBuffer> txn = env.txnRead();
-                     CursorIterable<ByteBuffer> it = db.iterate(txn)) {
-                    for (CursorIterable.KeyVal<ByteBuffer> c : it) {
-                        if (!keysFound.contains(decodeKey(c.key()))) {
-                            valBuf = c.val();
-                            if (valBuf != null) {
-                                obj = deserializer.apply(MemoryBuffer.fromByteBuffer(valBuf));
-                                collection.add(obj);
-                                putInCache(obj);
-                            }
+            final Txn<ByteBuffer> txn = beginRead();
+            try (CursorIterable<ByteBuffer> it = db.iterate(txn)) {
+                for (CursorIterable.KeyVal<ByteBuffer> c : it) {
+                    if (!keysFound.contains(decodeKey(c.key()))) {
+                        valBuf = c.val();
+                        if (valBuf != null) {
+                            obj = deserialize(valBuf, System.nanoTime());
+                            collection.add(cacheOrGet(obj));
                         }
                     }
                 }
+            } finally {
+                endRead();
             }
         }
 
@@ -851,8 +2537,15 @@ public final class Library
         private void remove(String key)
         {
             synchronized (env) {
-                cache.remove(key);
-                db.delete(encodeKey(key));
+                synchronized (rq) {
+                    cache.remove(key);
+                    hot.remove(key);
+                }
+                write(txn -> {
+                    db.delete(txn, encodeKey(key));
+                    refs.remove(txn, ReferenceIndex.nodeOf(refType, key));
+                    for (SecondaryIndex<T> index : indexes) index.remove(txn, key);
+                });
             }
         }
 
@@ -864,57 +2557,204 @@ public final class Library
             }
         }
 
-        private void putInCache(T obj)
+        /**
+         * Caches a resource read from the DB, unless another thread has cached the same resource first, in which
+         * case that instance wins so that every reader sees the same object.
+         *
+         * @param obj resource read from the DB
+         * @return the cached instance
+         */
+        private T cacheOrGet(T obj)
         {
             String objKey = obj.getKey();
             synchronized (rq) {
-                cache.put(objKey, new ResourceCacheNode(objKey, obj, rq, cache::remove));
+                LibraryResource existing = peekCache(objKey);
+                if (existing != null) return valueClass.cast(existing);
+                cache.put(objKey, new ResourceCacheNode(objKey, obj, rq, n -> cache.remove(n.key, n)));
+                if (hotCapacity > 0) hot.put(objKey, obj);
+                return obj;
+            }
+        }
+
+        /**
+         * Looks up a resource in the cache without counting the lookup.
+         *
+         * @param key key of the resource
+         * @return the resource, or null if it is not cached
+         */
+        private T peek(String key)
+        {
+            synchronized (rq) {
+                return valueClass.cast(peekCache(key));
             }
         }
 
         private LibraryResource tryFromCache(String key)
         {
             synchronized (rq) {
+                LibraryResource res = hot.get(key);
+                if (res == null && (res = peekCache(key)) != null) weakHits++;
+                if (res == null) misses++;
+                else hits++;
+                return res;
+            }
+        }
+
+        /**
+         * Looks up a resource in both levels, promoting it to the first if it was found only in the second.  Must
+         * be called while synchronized on <code>rq</code>.
+         */
+        private LibraryResource peekCache(String key)
+        {
+            LibraryResource res = hot.get(key);
+            if (res == null) {
                 ResourceCacheNode node = cache.get(key);
-                if (node != null)
-                    return node.get();
-                return null;
+                if (node != null && (res = node.get()) != null && hotCapacity > 0) {
+                    hot.put(key, res);
+                }
+            }
+            return res;
+        }
+
+        private CacheStats stats()
+        {
+            synchronized (rq) {
+                return new CacheStats(hits, weakHits, misses, evictions, hot.size(), hotCapacity);
             }
         }
 
         private T tryFromDB(Txn<ByteBuffer> txn, ByteBuffer keyBuf)
         {
+            final long start = System.nanoTime();
             final ByteBuffer valBuf = db.get(txn, keyBuf);
             if (valBuf == null) return null;
-            return deserializer.apply(MemoryBuffer.fromByteBuffer(valBuf));
+            return deserialize(valBuf, start);
+        }
+
+        /**
+         * Reads a resource from a value in the DB, recording the read.
+         *
+         * @param valBuf value
+         * @param start  <code>System.nanoTime()</code> when the read began
+         * @return resource
+         */
+        private T deserialize(ByteBuffer valBuf, long start)
+        {
+            final int bytes = valBuf.remaining();
+            final T ret = deserializer.apply(MemoryBuffer.fromByteBuffer(unframed(valBuf)));
+            metrics.recordRead(bytes, System.nanoTime() - start);
+            return ret;
         }
 
         private T tryFromDB(ByteBuffer keyBuf)
         {
-            try (Txn<ByteBuffer> txn = env.txnRead()) {
+            final Txn<ByteBuffer> txn = beginRead();
+            try {
                 return tryFromDB(txn, keyBuf);
+            } finally {
+                endRead();
             }
         }
 
         private void put(ByteBuffer keyBuf, T val)
         {
+            write(txn -> put(txn, keyBuf, val));
+        }
+
+        private void put(Txn<ByteBuffer> txn, ByteBuffer keyBuf, T val)
+        {
+            final long start = System.nanoTime();
             valBuf.clear();
             valMemBuf.writerIndex(0);
             serializer.accept(valMemBuf, val);
             ensureValOffHeap();
-            db.put(keyBuf, valBuf);
-            maybeGrowMap();
+            final ByteBuffer framed = framed(valBuf);
+            db.put(txn, keyBuf, framed);
+            metrics.recordWrite(framed.remaining(), System.nanoTime() - start);
+            index(txn, val.getKey(), val);
+        }
+    }
+
+    /**
+     * A resource serialized ahead of a write in key order.
+     */
+    /**
+     * A queued save of one resource, which finds nothing to do if the resource was saved in the meantime.
+     */
+    private static final class PendingSave
+    {
+        private final LibraryResource resource;
+        private final Consumer<Txn<ByteBuffer>> body;
+
+        private PendingSave(LibraryResource resource, Consumer<Txn<ByteBuffer>> body)
+        {
+            this.resource = resource;
+            this.body = body;
+        }
+    }
+
+    private static final class PendingRecord
+    {
+        private final byte[] key;
+        private final byte[] val;
+        private final byte[] snapshot;
+        private final LibraryResource resource;
+
+        private PendingRecord(byte[] key, byte[] val, byte[] snapshot, LibraryResource resource)
+        {
+            this.key = key;
+            this.val = val;
+            this.snapshot = snapshot;
+            this.resource = resource;
+        }
+    }
+
+    /**
+     * Chunk 0 of a stored collection.
+     */
+    private static final class ListHeader
+    {
+        private static final int BYTES = 12;
+        private final int size;
+        private final int chunkSize;
+        private final int chunks;
+
+        private ListHeader(int size, int chunkSize, int chunks)
+        {
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunks = chunks;
+        }
+
+        private static ListHeader read(ByteBuffer buf)
+        {
+            final int pos = buf.position();
+            return new ListHeader(buf.getInt(pos), buf.getInt(pos + 4), buf.getInt(pos + 8));
+        }
+
+        private void write(ByteBuffer buf)
+        {
+            buf.clear().putInt(size).putInt(chunkSize).putInt(chunks).flip();
         }
     }
 
+    /**
+     * A thread's read transaction, kept between reads and renewed rather than reopened.
+     */
+    private static class ReadTxn
+    {
+        private Txn<ByteBuffer> txn;
+        private int depth;
+    }
+
     private static class ResourceCacheNode
             extends WeakReference<LibraryResource>
     {
         private final String key;
-        private final Consumer<String> onEvict;
+        private final Consumer<ResourceCacheNode> onEvict;
 
         private ResourceCacheNode(String key, LibraryResource val, ReferenceQueue<LibraryResource> rq,
-                                  Consumer<String> onEvict)
+                                  Consumer<ResourceCacheNode> onEvict)
         {
             super(val, rq);
             this.key = key;
@@ -923,7 +2763,7 @@ public final class Library
 
         private void evict()
         {
-            onEvict.accept(key);
+            onEvict.accept(this);
         }
     }
 
@@ -939,35 +2779,48 @@ public final class Library
 
         private Cleanup()
         {
-            albumDb.values(albumsToRemove = new HashSet<>());
-            artistDb.values(artistsToRemove = new HashSet<>());
-            genreDb.values(genresToRemove = new HashSet<>());
-            labelDb.values(labelsToRemove = new HashSet<>());
-            trackDb.values(tracksToRemove = new HashSet<>());
-            List<Playlist> playlists = playlistDb.values();
-            handleFinalizationQueue();
-
-            SavedAlbumCollection savedAlbums = getSavedAlbums();
-            for (SavedResource<Album> s : savedAlbums.getSavedResources()) {
-                keepAlbum(s.getResource());
+            albumsToRemove = new HashSet<>();
+            artistsToRemove = new HashSet<>();
+            genresToRemove = new HashSet<>();
+            labelsToRemove = new HashSet<>();
+            tracksToRemove = new HashSet<>();
+            // the index only knows about what has been written
+            saveModified();
+            if (!state.hasReferenceIndex) {
+                rebuildReferenceIndex();
             }
 
-            for (Playlist p : playlists) {
-                populateSavedResources(p);
-                for (SavedResource<Track> s : p.getSavedResources()) {
-                    keepTrack(s.getResource());
+            final Set<String> unreachable;
+            synchronized (env) {
+                try (Txn<ByteBuffer> txn = env.txnRead()) {
+                    unreachable = refs.findUnreachable(txn);
                 }
+                write(txn -> {
+                    // anything found reachable need not be checked again until it loses a reference
+                    refs.retainCandidates(txn, unreachable);
+                });
             }
 
-            SavedTrackCollection likedSongs = getLikedSongs();
-            for (SavedResource<Track> s : likedSongs.getSavedResources()) {
-                keepTrack(s.getResource());
+            for (String node : unreachable) {
+                final String key = ReferenceIndex.keyOf(node);
+                switch (ReferenceIndex.typeOf(node)) {
+                    case ReferenceIndex.ALBUM -> addIfPresent(albumsToRemove, albumDb.read(key));
+                    case ReferenceIndex.ARTIST -> addIfPresent(artistsToRemove, artistDb.read(key));
+                    case ReferenceIndex.GENRE -> addIfPresent(genresToRemove, genreDb.read(key));
+                    case ReferenceIndex.LABEL -> addIfPresent(labelsToRemove, labelDb.read(key));
+                    case ReferenceIndex.TRACK -> addIfPresent(tracksToRemove, trackDb.read(key));
+                }
             }
 
             recovered = new ArrayList<>();
             recoverable = true;
         }
 
+        private static <T> void addIfPresent(Set<T> set, T t)
+        {
+            if (t != null) set.add(t);
+        }
+
         public void forEachResource(Consumer<LibraryResource> func)
         {
             tracksToRemove.forEach(func);
@@ -979,11 +2832,18 @@ public final class Library
 
         public synchronized void clean()
         {
+            synchronized (env) {
+                pendingResponses.keySet().removeIf(r -> albumsToRemove.contains(r) || artistsToRemove.contains(r));
+            }
             for (Album a : albumsToRemove) albumDb.remove(a.getId());
             for (Artist a : artistsToRemove) artistDb.remove(a.getId());
             for (Genre g : genresToRemove) genreDb.remove(g.getName());
             for (Label l : labelsToRemove) labelDb.remove(l.getName());
             for (Track t : tracksToRemove) trackDb.remove(t.getId());
+            final long now = Instant.now().getEpochSecond();
+            synchronized (env) {
+                write(txn -> responses.prune(txn, now));
+            }
         }
 
         private void recover(LibraryResource resource)
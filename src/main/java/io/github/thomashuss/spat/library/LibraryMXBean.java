@@ -0,0 +1,28 @@
+package io.github.thomashuss.spat.library;
+
+/**
+ * Management interface of a <code>Library</code>.  Each of its resource stores is registered alongside it as a
+ * <code>ResourceStoreMXBean</code>.
+ */
+public interface LibraryMXBean
+{
+    /**
+     * @return size of the map, in bytes
+     */
+    long getMapSize();
+
+    /**
+     * @return bytes of the map in use, up to and including the last page written
+     */
+    long getMapUsed();
+
+    /**
+     * @return number of times a write has filled the map and had to grow it since the library was opened
+     */
+    int getMapGrowths();
+
+    /**
+     * @return number of saves waiting for <code>saveModified()</code>
+     */
+    int getPendingSaves();
+}
@@ -0,0 +1,217 @@
+package io.github.thomashuss.spat.library;
+
+import org.lmdbjava.Cursor;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.DbiFlags;
+import org.lmdbjava.Env;
+import org.lmdbjava.GetOp;
+import org.lmdbjava.PutFlags;
+import org.lmdbjava.SeekOp;
+import org.lmdbjava.Txn;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Indexes the names of resources by their trigrams, so that resources can be found by any part of their name
+ * without reading them.
+ */
+/*
+ * names maps a type tag and resource key to the lower-cased name, which is what the trigrams were taken from.
+ * trigrams maps a type tag and trigram to the keys of every resource of that type whose name contains it.  A
+ * search reads the postings of the rarest trigram of the query and checks each candidate's name for the whole
+ * query.  Queries shorter than a trigram fall back to scanning the names of the type.
+ */
+final class NameIndex
+        implements AutoCloseable
+{
+    private static final int GRAM = 3;
+
+    private final Dbi<ByteBuffer> trigramDb;
+    private final Dbi<ByteBuffer> nameDb;
+    private final ByteBuffer keyBuf;
+    private final ByteBuffer valBuf;
+    private final ThreadLocal<ByteBuffer> readKeyBuf;
+    private ByteBuffer nameBuf = ByteBuffer.allocateDirect(256);
+
+    NameIndex(Env<ByteBuffer> env)
+    {
+        trigramDb = env.openDbi("nameTrigram", DbiFlags.MDB_CREATE, DbiFlags.MDB_DUPSORT);
+        nameDb = env.openDbi("name", DbiFlags.MDB_CREATE);
+        final int maxKeySize = env.getMaxKeySize();
+        keyBuf = ByteBuffer.allocateDirect(maxKeySize);
+        valBuf = ByteBuffer.allocateDirect(maxKeySize);
+        readKeyBuf = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(maxKeySize));
+    }
+
+    static String normalize(String name)
+    {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static Set<String> trigramsOf(String normalized)
+    {
+        final Set<String> ret = new LinkedHashSet<>();
+        for (int i = 0; i + GRAM <= normalized.length(); i++) {
+            ret.add(normalized.substring(i, i + GRAM));
+        }
+        return ret;
+    }
+
+    private static ByteBuffer encodeTagged(ByteBuffer buf, char type, String s)
+    {
+        return buf.clear().put((byte) type).put(s.getBytes(StandardCharsets.UTF_8)).flip();
+    }
+
+    private static ByteBuffer encodeNode(ByteBuffer buf, char type, String key)
+    {
+        buf.clear().put((byte) type);
+        return KeyCodec.encode(buf, key).flip();
+    }
+
+    private static String decodeString(ByteBuffer buf)
+    {
+        final byte[] b = new byte[buf.remaining()];
+        buf.get(buf.position(), b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates the index of one type of resource.
+     *
+     * @param type type tag, as in <code>ReferenceIndex</code>
+     * @return index to attach to the DB of that type
+     */
+    <T extends LibraryResource> SecondaryIndex<T> of(final char type)
+    {
+        return new SecondaryIndex<>()
+        {
+            @Override
+            public void put(Txn<ByteBuffer> txn, T resource)
+            {
+                final String name = resource.getName();
+                update(txn, type, resource.getKey(), name == null ? null : normalize(name));
+            }
+
+            @Override
+            public void remove(Txn<ByteBuffer> txn, String key)
+            {
+                update(txn, type, key, null);
+            }
+        };
+    }
+
+    private void update(Txn<ByteBuffer> txn, char type, String key, String name)
+    {
+        final ByteBuffer oldBuf = nameDb.get(txn, encodeNode(keyBuf, type, key));
+        final String old = oldBuf == null ? null : decodeString(oldBuf);
+        if (old == null ? name == null : old.equals(name)) return;
+
+        final Set<String> oldGrams = old == null ? Set.of() : trigramsOf(old);
+        final Set<String> newGrams = name == null ? Set.of() : trigramsOf(name);
+        encodeNode(valBuf, type, key);
+        for (String gram : oldGrams) {
+            if (!newGrams.contains(gram)) {
+                trigramDb.delete(txn, encodeTagged(keyBuf, type, gram), valBuf.rewind());
+            }
+        }
+        for (String gram : newGrams) {
+            if (!oldGrams.contains(gram)) {
+                trigramDb.put(txn, encodeTagged(keyBuf, type, gram), valBuf.rewind(), PutFlags.MDB_NODUPDATA);
+            }
+        }
+        encodeNode(keyBuf, type, key);
+        if (name == null) {
+            nameDb.delete(txn, keyBuf);
+        } else {
+            final byte[] b = name.getBytes(StandardCharsets.UTF_8);
+            if (nameBuf.capacity() < b.length) {
+                nameBuf = ByteBuffer.allocateDirect(b.length);
+            }
+            nameDb.put(txn, keyBuf, nameBuf.clear().put(b).flip());
+        }
+    }
+
+    /**
+     * Finds the resources of a type whose names contain <code>query</code>, ignoring case.
+     *
+     * @param txn   read transaction
+     * @param type  type tag, as in <code>ReferenceIndex</code>
+     * @param query text to look for
+     * @param limit greatest number of keys to return, or 0 for no limit
+     * @return keys of the matching resources
+     */
+    List<String> search(Txn<ByteBuffer> txn, char type, String query, int limit)
+    {
+        final String q = normalize(query);
+        final List<String> ret = new ArrayList<>();
+        if (q.length() < GRAM) {
+            scanNames(txn, type, q, limit, ret);
+            return ret;
+        }
+
+        final ByteBuffer k = readKeyBuf.get();
+        try (Cursor<ByteBuffer> c = trigramDb.openCursor(txn)) {
+            String rarest = null;
+            long fewest = Long.MAX_VALUE;
+            for (String gram : trigramsOf(q)) {
+                if (!c.get(encodeTagged(k, type, gram), GetOp.MDB_SET_KEY)) return ret;
+                final long n = c.count();
+                if (n < fewest) {
+                    fewest = n;
+                    rarest = gram;
+                }
+            }
+            c.get(encodeTagged(k, type, rarest), GetOp.MDB_SET_KEY);
+            final boolean exact = q.length() == GRAM;
+            do {
+                final ByteBuffer node = c.val();
+                if (exact || matches(txn, node, q)) {
+                    ret.add(KeyCodec.decode(node.duplicate().position(node.position() + 1)));
+                    if (ret.size() == limit) break;
+                }
+            } while (c.seek(SeekOp.MDB_NEXT_DUP));
+        }
+        return ret;
+    }
+
+    private boolean matches(Txn<ByteBuffer> txn, ByteBuffer node, String q)
+    {
+        final ByteBuffer name = nameDb.get(txn, node);
+        return name != null && decodeString(name).contains(q);
+    }
+
+    private void scanNames(Txn<ByteBuffer> txn, char type, String q, int limit, List<String> ret)
+    {
+        final ByteBuffer k = readKeyBuf.get().clear().put((byte) type).flip();
+        try (Cursor<ByteBuffer> c = nameDb.openCursor(txn)) {
+            if (!c.get(k, GetOp.MDB_SET_RANGE)) return;
+            do {
+                final ByteBuffer node = c.key();
+                if (node.get(node.position()) != (byte) type) return;
+                if (decodeString(c.val()).contains(q)) {
+                    ret.add(KeyCodec.decode(node.duplicate().position(node.position() + 1)));
+                    if (ret.size() == limit) return;
+                }
+            } while (c.next());
+        }
+    }
+
+    void clear(Txn<ByteBuffer> txn)
+    {
+        trigramDb.drop(txn);
+        nameDb.drop(txn);
+    }
+
+    @Override
+    public void close()
+    {
+        trigramDb.close();
+        nameDb.close();
+    }
+}
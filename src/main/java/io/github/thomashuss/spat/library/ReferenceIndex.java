@@ -0,0 +1,259 @@
+package io.github.thomashuss.spat.library;
+
+import org.lmdbjava.Cursor;
+import org.lmdbjava.CursorIterable;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.DbiFlags;
+import org.lmdbjava.Env;
+import org.lmdbjava.GetOp;
+import org.lmdbjava.PutFlags;
+import org.lmdbjava.SeekOp;
+import org.lmdbjava.Txn;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Persists the edges of the resource graph in both directions, so that resources which can no longer be reached
+ * from any saved collection are found by walking only the part of the graph that changed.
+ */
+/*
+ * Nodes are identified by a type tag followed by the resource key.  An edge A -> B means that keeping A keeps B,
+ * mirroring Cleanup.keep.  Collections are the roots of the graph.  Whenever a node loses an incoming edge, or is
+ * written to its own DB, it becomes a candidate; only candidates (and whatever they alone were keeping alive) are
+ * examined when looking for unreachable nodes.
+ */
+final class ReferenceIndex
+        implements AutoCloseable
+{
+    static final char ALBUM = 'a';
+    static final char ARTIST = 'r';
+    static final char COLLECTION = 'c';
+    static final char GENRE = 'g';
+    static final char LABEL = 'l';
+    static final char TRACK = 't';
+    private static final ByteBuffer EMPTY = ByteBuffer.allocateDirect(1);
+
+    private final Dbi<ByteBuffer> refDb;
+    private final Dbi<ByteBuffer> backRefDb;
+    private final Dbi<ByteBuffer> candidateDb;
+    private final ByteBuffer keyBuf;
+    private final ByteBuffer valBuf;
+
+    ReferenceIndex(Env<ByteBuffer> env)
+    {
+        refDb = env.openDbi("ref", DbiFlags.MDB_CREATE, DbiFlags.MDB_DUPSORT);
+        backRefDb = env.openDbi("backRef", DbiFlags.MDB_CREATE, DbiFlags.MDB_DUPSORT);
+        candidateDb = env.openDbi("refCandidate", DbiFlags.MDB_CREATE);
+        keyBuf = ByteBuffer.allocateDirect(env.getMaxKeySize());
+        valBuf = ByteBuffer.allocateDirect(env.getMaxKeySize());
+    }
+
+    static String nodeOf(char type, String key)
+    {
+        return type + key;
+    }
+
+    static char typeOf(String node)
+    {
+        return node.charAt(0);
+    }
+
+    static String keyOf(String node)
+    {
+        return node.substring(1);
+    }
+
+    private static ByteBuffer encode(ByteBuffer buf, String node)
+    {
+        buf.clear();
+        buf.put((byte) typeOf(node));
+        return KeyCodec.encode(buf, keyOf(node)).flip();
+    }
+
+    private static String decode(ByteBuffer buf)
+    {
+        final int pos = buf.position();
+        return nodeOf((char) buf.get(pos), KeyCodec.decode(buf.duplicate().position(pos + 1)));
+    }
+
+    private static void addEdge(Txn<ByteBuffer> txn, Dbi<ByteBuffer> db, ByteBuffer from, ByteBuffer to)
+    {
+        db.put(txn, from.rewind(), to.rewind(), PutFlags.MDB_NODUPDATA);
+    }
+
+    private static void removeEdge(Txn<ByteBuffer> txn, Dbi<ByteBuffer> db, ByteBuffer from, ByteBuffer to)
+    {
+        db.delete(txn, from.rewind(), to.rewind());
+    }
+
+    private List<String> edgesOf(Txn<ByteBuffer> txn, Dbi<ByteBuffer> db, String node)
+    {
+        List<String> ret = new ArrayList<>();
+        try (Cursor<ByteBuffer> c = db.openCursor(txn)) {
+            if (c.get(encode(keyBuf, node), GetOp.MDB_SET_KEY)) {
+                do {
+                    ret.add(decode(c.val()));
+                } while (c.seek(SeekOp.MDB_NEXT_DUP));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Replaces the outgoing edges of <code>referrer</code>.  Nodes which lose their edge from
+     * <code>referrer</code> become candidates.
+     *
+     * @param txn      write transaction
+     * @param referrer node whose edges are being replaced
+     * @param referees nodes now referenced by <code>referrer</code>
+     */
+    void setReferences(Txn<ByteBuffer> txn, String referrer, Collection<String> referees)
+    {
+        final Set<String> added = new HashSet<>(referees);
+        for (String old : edgesOf(txn, refDb, referrer)) {
+            if (!added.remove(old)) {
+                encode(keyBuf, referrer);
+                encode(valBuf, old);
+                removeEdge(txn, refDb, keyBuf, valBuf);
+                removeEdge(txn, backRefDb, valBuf, keyBuf);
+                addCandidate(txn, old);
+            }
+        }
+        for (String referee : added) {
+            encode(keyBuf, referrer);
+            encode(valBuf, referee);
+            addEdge(txn, refDb, keyBuf, valBuf);
+            addEdge(txn, backRefDb, valBuf, keyBuf);
+        }
+    }
+
+    void addCandidate(Txn<ByteBuffer> txn, String node)
+    {
+        candidateDb.put(txn, encode(keyBuf, node), EMPTY.rewind());
+    }
+
+    /**
+     * Removes a node and all of its edges.  Nodes it referenced become candidates.
+     *
+     * @param txn  write transaction
+     * @param node node to remove
+     */
+    void remove(Txn<ByteBuffer> txn, String node)
+    {
+        setReferences(txn, node, List.of());
+        for (String referrer : edgesOf(txn, backRefDb, node)) {
+            encode(keyBuf, referrer);
+            encode(valBuf, node);
+            removeEdge(txn, refDb, keyBuf, valBuf);
+        }
+        encode(keyBuf, node);
+        backRefDb.delete(txn, keyBuf);
+        candidateDb.delete(txn, keyBuf.rewind());
+    }
+
+    /**
+     * Determines whether a path leads from a collection to <code>start</code>, walking edges backwards.  If there
+     * is none, every node visited on the way is unreachable as well.
+     */
+    private boolean isReachable(Txn<ByteBuffer> txn, String start, Set<String> reachable, Set<String> unreachable,
+                                Collection<String> newlyUnreachable)
+    {
+        final Deque<String> stack = new ArrayDeque<>();
+        final Set<String> visited = new HashSet<>();
+        stack.push(start);
+        visited.add(start);
+        String node;
+        while ((node = stack.poll()) != null) {
+            if (typeOf(node) == COLLECTION || reachable.contains(node)) {
+                reachable.add(start);
+                return true;
+            }
+            for (String referrer : edgesOf(txn, backRefDb, node)) {
+                if (!unreachable.contains(referrer) && visited.add(referrer)) {
+                    stack.push(referrer);
+                }
+            }
+        }
+        unreachable.addAll(visited);
+        newlyUnreachable.addAll(visited);
+        return false;
+    }
+
+    /**
+     * Finds all nodes which can no longer be reached from a collection, starting from the candidates.
+     *
+     * @param txn read transaction
+     * @return unreachable nodes
+     */
+    Set<String> findUnreachable(Txn<ByteBuffer> txn)
+    {
+        final Set<String> reachable = new HashSet<>();
+        final Set<String> unreachable = new HashSet<>();
+        final Deque<String> work = new ArrayDeque<>();
+        final List<String> newlyUnreachable = new ArrayList<>();
+        try (CursorIterable<ByteBuffer> it = candidateDb.iterate(txn)) {
+            for (CursorIterable.KeyVal<ByteBuffer> c : it) {
+                work.add(decode(c.key()));
+            }
+        }
+
+        String node;
+        while ((node = work.poll()) != null) {
+            if (reachable.contains(node) || unreachable.contains(node)) continue;
+            if (!isReachable(txn, node, reachable, unreachable, newlyUnreachable)) {
+                // whatever the unreachable nodes were keeping alive may now be unreachable too
+                for (String u : newlyUnreachable) {
+                    work.addAll(edgesOf(txn, refDb, u));
+                }
+                newlyUnreachable.clear();
+            }
+        }
+        return unreachable;
+    }
+
+    /**
+     * Removes all candidates except those in <code>retain</code>.
+     *
+     * @param txn    write transaction
+     * @param retain candidates which should stay candidates
+     */
+    void retainCandidates(Txn<ByteBuffer> txn, Set<String> retain)
+    {
+        try (Cursor<ByteBuffer> c = candidateDb.openCursor(txn)) {
+            if (c.first()) {
+                do {
+                    if (!retain.contains(decode(c.key()))) {
+                        c.delete();
+                    }
+                } while (c.next());
+            }
+        }
+    }
+
+    /**
+     * Removes every edge and candidate.
+     *
+     * @param txn write transaction
+     */
+    void clear(Txn<ByteBuffer> txn)
+    {
+        refDb.drop(txn);
+        backRefDb.drop(txn);
+        candidateDb.drop(txn);
+    }
+
+    @Override
+    public void close()
+    {
+        refDb.close();
+        backRefDb.close();
+        candidateDb.close();
+    }
+}
@@ -0,0 +1,79 @@
+package io.github.thomashuss.spat.library;
+
+/**
+ * Management interface of the store of one type of resource in a <code>Library</code>.
+ */
+public interface ResourceStoreMXBean
+{
+    /**
+     * @return number of resources read from the database
+     */
+    long getReads();
+
+    /**
+     * @return number of value bytes read from the database
+     */
+    long getReadBytes();
+
+    /**
+     * @return number of resources written to the database
+     */
+    long getWrites();
+
+    /**
+     * @return number of value bytes written to the database
+     */
+    long getWriteBytes();
+
+    /**
+     * @return counts of reads by duration; element <i>i</i> counts reads which took under 2<sup><i>i</i></sup>
+     * microseconds and, unless <i>i</i> is 0, at least 2<sup><i>i</i>-1</sup>
+     */
+    long[] getReadLatencyHistogram();
+
+    /**
+     * @return counts of writes by duration, bucketed like <code>getReadLatencyHistogram()</code>
+     */
+    long[] getWriteLatencyHistogram();
+
+    double getMeanReadMicros();
+
+    double getMeanWriteMicros();
+
+    /**
+     * @return number of lookups answered by either cache level
+     */
+    long getCacheHits();
+
+    /**
+     * @return number of lookups answered by the weak level after missing the strong one
+     */
+    long getWeakCacheHits();
+
+    /**
+     * @return number of lookups which had to go to the database
+     */
+    long getCacheMisses();
+
+    /**
+     * @return number of resources dropped from the strong level to make room
+     */
+    long getCacheEvictions();
+
+    double getCacheHitRatio();
+
+    /**
+     * @return share of the lookups which missed the strong level that the weak level answered
+     */
+    double getWeakCacheHitRatio();
+
+    /**
+     * @return number of resources currently held by the strong level
+     */
+    int getCacheSize();
+
+    /**
+     * @return maximum number of resources held by the strong level
+     */
+    int getCacheCapacity();
+}
@@ -0,0 +1,134 @@
+package io.github.thomashuss.spat.library;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Counters of the store of one type of resource in a <code>Library</code>.
+ */
+public final class ResourceStoreMetrics
+        implements ResourceStoreMXBean
+{
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder readBytes = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder writeBytes = new LongAdder();
+    private final LatencyHistogram readLatency = new LatencyHistogram();
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+    private final Supplier<CacheStats> cacheStats;
+
+    ResourceStoreMetrics(Supplier<CacheStats> cacheStats)
+    {
+        this.cacheStats = cacheStats;
+    }
+
+    void recordRead(int bytes, long nanos)
+    {
+        reads.increment();
+        readBytes.add(bytes);
+        readLatency.record(nanos);
+    }
+
+    void recordWrite(int bytes, long nanos)
+    {
+        writes.increment();
+        writeBytes.add(bytes);
+        writeLatency.record(nanos);
+    }
+
+    @Override
+    public long getReads()
+    {
+        return reads.sum();
+    }
+
+    @Override
+    public long getReadBytes()
+    {
+        return readBytes.sum();
+    }
+
+    @Override
+    public long getWrites()
+    {
+        return writes.sum();
+    }
+
+    @Override
+    public long getWriteBytes()
+    {
+        return writeBytes.sum();
+    }
+
+    @Override
+    public long[] getReadLatencyHistogram()
+    {
+        return readLatency.snapshot();
+    }
+
+    @Override
+    public long[] getWriteLatencyHistogram()
+    {
+        return writeLatency.snapshot();
+    }
+
+    @Override
+    public double getMeanReadMicros()
+    {
+        return readLatency.meanMicros();
+    }
+
+    @Override
+    public double getMeanWriteMicros()
+    {
+        return writeLatency.meanMicros();
+    }
+
+    @Override
+    public long getCacheHits()
+    {
+        return cacheStats.get().getHits();
+    }
+
+    @Override
+    public long getWeakCacheHits()
+    {
+        return cacheStats.get().getWeakHits();
+    }
+
+    @Override
+    public long getCacheMisses()
+    {
+        return cacheStats.get().getMisses();
+    }
+
+    @Override
+    public long getCacheEvictions()
+    {
+        return cacheStats.get().getEvictions();
+    }
+
+    @Override
+    public double getCacheHitRatio()
+    {
+        return cacheStats.get().getHitRatio();
+    }
+
+    @Override
+    public double getWeakCacheHitRatio()
+    {
+        return cacheStats.get().getWeakHitRatio();
+    }
+
+    @Override
+    public int getCacheSize()
+    {
+        return cacheStats.get().getSize();
+    }
+
+    @Override
+    public int getCacheCapacity()
+    {
+        return cacheStats.get().getCapacity();
+    }
+}
@@ -0,0 +1,154 @@
+package io.github.thomashuss.spat.library;
+
+import org.lmdbjava.Cursor;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.DbiFlags;
+import org.lmdbjava.Env;
+import org.lmdbjava.Txn;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the last response from Spotify to the request for each album or artist which was worth caching, along with
+ * its entity tag.  A response is dropped along with its resource, and once it is older than <code>MAX_AGE</code>.
+ */
+/*
+ * Keys are the type tag and resource key, as in FetchTimes.  A value is the time it was stored, in seconds since the
+ * epoch as an unsigned 4-byte integer, then the tag as a 2-byte length and UTF-8 bytes, then the body.  All but the
+ * time is framed by the value codec, so that the JSON is deflated while pruning does not have to inflate it.
+ */
+final class ResponseCache
+        implements AutoCloseable
+{
+    /**
+     * Seconds after which a stored response is no longer used, and is dropped by <code>prune</code>.
+     */
+    static final long MAX_AGE = TimeUnit.DAYS.toSeconds(30);
+    private static final int MAX_TAG = 0xFFFF;
+
+    private final Dbi<ByteBuffer> db;
+    private final ValueCodec codec;
+    private final ByteBuffer keyBuf;
+    private final ThreadLocal<ByteBuffer> readKeyBuf;
+    private ByteBuffer valBuf = ByteBuffer.allocateDirect(1024);
+    private ByteBuffer storedBuf = ByteBuffer.allocateDirect(1024);
+
+    ResponseCache(Env<ByteBuffer> env, ValueCodec codec)
+    {
+        db = env.openDbi("response", DbiFlags.MDB_CREATE);
+        this.codec = codec;
+        final int maxKeySize = env.getMaxKeySize();
+        keyBuf = ByteBuffer.allocateDirect(maxKeySize);
+        readKeyBuf = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(maxKeySize));
+    }
+
+    private static ByteBuffer encodeNode(ByteBuffer buf, char type, String key)
+    {
+        buf.clear().put((byte) type);
+        return KeyCodec.encode(buf, key).flip();
+    }
+
+    /**
+     * Creates the index of one type of resource, which drops the response to a resource when it is removed.
+     *
+     * @param type type tag, as in <code>ReferenceIndex</code>
+     * @return index to attach to the DB of that type
+     */
+    <T extends LibraryResource> SecondaryIndex<T> of(final char type)
+    {
+        return new SecondaryIndex<>()
+        {
+            @Override
+            public void put(Txn<ByteBuffer> txn, T resource)
+            {
+            }
+
+            @Override
+            public void remove(Txn<ByteBuffer> txn, String key)
+            {
+                db.delete(txn, encodeNode(keyBuf, type, key));
+            }
+        };
+    }
+
+    /**
+     * Stores a response, replacing the one before it.  Must be called while synchronized on the lmdb env.
+     *
+     * @param txn      write transaction
+     * @param type     type tag of the resource which was requested, as in <code>ReferenceIndex</code>
+     * @param key      key of the resource
+     * @param response response to store
+     * @param time     seconds since the epoch
+     */
+    void put(Txn<ByteBuffer> txn, char type, String key, CachedResponse response, long time)
+    {
+        final byte[] tag = response.getTag().getBytes(StandardCharsets.UTF_8);
+        final byte[] body = response.getBody();
+        if (tag.length > MAX_TAG) return;
+        final int size = 2 + tag.length + body.length;
+        if (valBuf.capacity() < size) {
+            valBuf = ByteBuffer.allocateDirect(Library.roundBufSize(size));
+        }
+        valBuf.clear().putShort((short) tag.length).put(tag).put(body).flip();
+        final ByteBuffer framed = codec.encode(valBuf);
+        if (storedBuf.capacity() < Integer.BYTES + framed.remaining()) {
+            storedBuf = ByteBuffer.allocateDirect(Library.roundBufSize(Integer.BYTES + framed.remaining()));
+        }
+        storedBuf.clear().putInt((int) time).put(framed).flip();
+        db.put(txn, encodeNode(keyBuf, type, key), storedBuf);
+    }
+
+    /**
+     * Looks up the response to the request for a resource.
+     *
+     * @param txn  read transaction
+     * @param type type tag of the resource, as in <code>ReferenceIndex</code>
+     * @param key  key of the resource
+     * @param now  seconds since the epoch
+     * @return the response, or null if none is stored or it is older than <code>MAX_AGE</code>
+     */
+    CachedResponse get(Txn<ByteBuffer> txn, char type, String key, long now)
+    {
+        final ByteBuffer stored = db.get(txn, encodeNode(readKeyBuf.get(), type, key));
+        if (stored == null || now - Integer.toUnsignedLong(stored.getInt(stored.position())) >= MAX_AGE) return null;
+        final ByteBuffer val = codec.decode(stored.position(stored.position() + Integer.BYTES));
+        final byte[] tag = new byte[val.getShort() & MAX_TAG];
+        val.get(tag);
+        final byte[] body = new byte[val.remaining()];
+        val.get(body);
+        return new CachedResponse(new String(tag, StandardCharsets.UTF_8), body);
+    }
+
+    /**
+     * Drops every response older than <code>MAX_AGE</code>.  Must be called while synchronized on the lmdb env.
+     *
+     * @param txn write transaction
+     * @param now seconds since the epoch
+     */
+    void prune(Txn<ByteBuffer> txn, long now)
+    {
+        try (Cursor<ByteBuffer> c = db.openCursor(txn)) {
+            if (c.first()) {
+                do {
+                    final ByteBuffer val = c.val();
+                    if (now - Integer.toUnsignedLong(val.getInt(val.position())) >= MAX_AGE) {
+                        c.delete();
+                    }
+                } while (c.next());
+            }
+        }
+    }
+
+    void clear(Txn<ByteBuffer> txn)
+    {
+        db.drop(txn);
+    }
+
+    @Override
+    public void close()
+    {
+        db.close();
+    }
+}
@@ -0,0 +1,184 @@
+package io.github.thomashuss.spat.library;
+
+import org.lmdbjava.Dbi;
+import org.lmdbjava.DbiFlags;
+import org.lmdbjava.Env;
+import org.lmdbjava.Txn;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Keeps what a table shows of each track, album and artist in a flat record, so that rows can be filled in without
+ * deserializing the resources.
+ */
+/*
+ * Records are keyed by a type tag and the resource key, as in ReferenceIndex.  Every record starts with the name
+ * as a 2-byte length and UTF-8 bytes.  A track's record goes on with the encoded key of its album, as a 1-byte
+ * length (0 if it has none) and the key, then the number of artists as 1 byte and each artist key the same way.
+ * The names of the album and artists are read from their own records, so renaming one rewrites only that record.
+ */
+final class RowStore
+        implements AutoCloseable
+{
+    private static final int MAX_NAME = 0xFFFF;
+    private static final int MAX_ARTISTS = 0xFF;
+
+    private final Dbi<ByteBuffer> db;
+    private final ByteBuffer keyBuf;
+    private final ThreadLocal<ByteBuffer> readKeyBuf;
+    /**
+     * Holds the keys from a track's record while the records they refer to are read, since lmdb hands out the same
+     * buffer for every value read in a transaction.
+     */
+    private final ThreadLocal<byte[]> readRefs = ThreadLocal.withInitial(() -> new byte[256]);
+    private ByteBuffer valBuf = ByteBuffer.allocateDirect(512);
+
+    RowStore(Env<ByteBuffer> env)
+    {
+        db = env.openDbi("row", DbiFlags.MDB_CREATE);
+        final int maxKeySize = env.getMaxKeySize();
+        keyBuf = ByteBuffer.allocateDirect(maxKeySize);
+        readKeyBuf = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(maxKeySize));
+    }
+
+    private static ByteBuffer encodeNode(ByteBuffer buf, char type, String key)
+    {
+        buf.clear().put((byte) type);
+        return KeyCodec.encode(buf, key).flip();
+    }
+
+    private ByteBuffer valBuf(int size)
+    {
+        if (valBuf.capacity() < size) {
+            valBuf = ByteBuffer.allocateDirect(Library.roundBufSize(size));
+        }
+        return valBuf.clear();
+    }
+
+    private static byte[] nameBytes(String name)
+    {
+        final byte[] b = name == null ? new byte[0] : name.getBytes(StandardCharsets.UTF_8);
+        if (b.length <= MAX_NAME) return b;
+        final byte[] ret = new byte[MAX_NAME];
+        System.arraycopy(b, 0, ret, 0, MAX_NAME);
+        return ret;
+    }
+
+    private void putKey(ByteBuffer buf, String key)
+    {
+        if (key == null) {
+            buf.put((byte) 0);
+        } else {
+            final int lenPos = buf.position();
+            buf.put((byte) 0);
+            KeyCodec.encode(buf, key);
+            final int len = buf.position() - lenPos - 1;
+            // a key this long is never an ID, so it is left out
+            if (len > 0xFF) buf.position(lenPos + 1);
+            else buf.put(lenPos, (byte) len);
+        }
+    }
+
+    /**
+     * Creates the index of one type of resource.  Only the name of an album or artist is kept.
+     *
+     * @param type type tag, as in <code>ReferenceIndex</code>
+     * @return index to attach to the DB of that type
+     */
+    <T extends LibraryResource> SecondaryIndex<T> of(final char type)
+    {
+        return new SecondaryIndex<>()
+        {
+            @Override
+            public void put(Txn<ByteBuffer> txn, T resource)
+            {
+                final byte[] name = nameBytes(resource.getName());
+                final ByteBuffer buf;
+                if (resource instanceof Track t) {
+                    final String[] artists = t.getArtistKeys();
+                    final int artistCount = artists == null ? 0 : Math.min(artists.length, MAX_ARTISTS);
+                    buf = valBuf(2 + name.length + (artistCount + 2) * (keyBuf.capacity() + 1));
+                    buf.putShort((short) name.length).put(name);
+                    putKey(buf, t.getAlbumKey());
+                    buf.put((byte) artistCount);
+                    for (int i = 0; i < artistCount; i++) putKey(buf, artists[i]);
+                } else {
+                    buf = valBuf(2 + name.length).putShort((short) name.length).put(name);
+                }
+                db.put(txn, encodeNode(keyBuf, type, resource.getKey()), buf.flip());
+            }
+
+            @Override
+            public void remove(Txn<ByteBuffer> txn, String key)
+            {
+                db.delete(txn, encodeNode(keyBuf, type, key));
+            }
+        };
+    }
+
+    /**
+     * Looks up the record of an album or artist from a key copied from a track's record.
+     *
+     * @return the record, or null if there is none
+     */
+    private ByteBuffer getReferenced(Txn<ByteBuffer> txn, ByteBuffer k, char type, byte[] refs, int pos, int len)
+    {
+        return db.get(txn, k.clear().put((byte) type).put(refs, pos, len).flip());
+    }
+
+    /**
+     * Copies the row of a track into <code>row</code>.
+     *
+     * @param txn read transaction
+     * @param key key of the track
+     * @param row row to fill in
+     * @return false if the track, its album or one of its artists has no record
+     */
+    boolean read(Txn<ByteBuffer> txn, String key, TrackRow row)
+    {
+        final ByteBuffer k = readKeyBuf.get();
+        final ByteBuffer t = db.get(txn, encodeNode(k, ReferenceIndex.TRACK, key));
+        if (t == null) return false;
+        int p = t.position();
+        final int nameLen = t.getShort(p) & MAX_NAME;
+        p += 2;
+        row.clear();
+        row.appendName(t, p, nameLen);
+        p += nameLen;
+
+        final int refsLen = t.limit() - p;
+        byte[] refs = readRefs.get();
+        if (refs.length < refsLen) readRefs.set(refs = new byte[Library.roundBufSize(refsLen)]);
+        t.get(p, refs, 0, refsLen);
+        p = 0;
+        final int albumLen = refs[p++] & 0xFF;
+        if (albumLen > 0) {
+            final ByteBuffer a = getReferenced(txn, k, ReferenceIndex.ALBUM, refs, p, albumLen);
+            if (a == null) return false;
+            row.appendAlbumName(a, a.position() + 2, a.getShort(a.position()) & MAX_NAME);
+            p += albumLen;
+        }
+
+        final int artistCount = refs[p++] & 0xFF;
+        for (int i = 0; i < artistCount; i++) {
+            final int len = refs[p++] & 0xFF;
+            final ByteBuffer a = getReferenced(txn, k, ReferenceIndex.ARTIST, refs, p, len);
+            if (a == null) return false;
+            row.appendArtistName(a, a.position() + 2, a.getShort(a.position()) & MAX_NAME);
+            p += len;
+        }
+        return true;
+    }
+
+    void clear(Txn<ByteBuffer> txn)
+    {
+        db.drop(txn);
+    }
+
+    @Override
+    public void close()
+    {
+        db.close();
+    }
+}
@@ -8,12 +8,18 @@ import io.github.thomashuss.spat.client.Token;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.stream.Stream;
 
 public class SaveDirectory
 {
     private static final String DB_NAME = "db";
     private static final String STATE_NAME = "state.json";
+    private static final String OLD_DB_NAME = "db.old";
+    private static final String NEW_DB_NAME = "db.new";
+    private static final String DATA_NAME = "data.mdb";
     @JsonIgnore
     File dbDir;
     @JsonIgnore
@@ -22,6 +28,10 @@ public class SaveDirectory
     private Token token;
     @JsonProperty("mapSize")
     long mapSize = Library.INITIAL_MAP_SIZE;
+    @JsonProperty("hasReferenceIndex")
+    boolean hasReferenceIndex;
+    @JsonProperty("formatVersion")
+    int formatVersion;
 
     public static Library createNewLibrary(File directory, SpotifyClient client)
     {
@@ -32,6 +42,8 @@ public class SaveDirectory
             state.dbDir = file;
             state.stateFile = path.resolve(STATE_NAME).toFile();
             state.token = client.getToken();
+            state.hasReferenceIndex = true;
+            state.formatVersion = Library.FORMAT_VERSION;
             return new Library(state);
         } else
             return null;
@@ -57,7 +69,143 @@ public class SaveDirectory
         Token token = client.getToken();
         token.update(state.token);
         state.token = token;
-        return new Library(state);
+        Library library = new Library(state);
+        library.upgrade();
+        return library;
+    }
+
+    /**
+     * Writes a compacted copy of a library to <code>directory</code>, which is created if needed, so that it can
+     * be opened with <code>loadData()</code> or put back with <code>restore()</code>.  The library stays open;
+     * modifications which have not been saved are not copied.
+     *
+     * @param library   library to copy
+     * @param directory directory to hold the snapshot
+     * @throws SaveFileException if <code>directory</code> already holds a database
+     * @throws IOException       if the snapshot state could not be saved
+     */
+    public static void snapshot(Library library, File directory)
+    throws SaveFileException, IOException
+    {
+        Path path = directory.toPath();
+        File dbDir = path.resolve(DB_NAME).toFile();
+        if (dbDir.exists()) {
+            throw new SaveFileException("The path `" + dbDir + "' already exists.");
+        }
+        if (!dbDir.mkdirs()) {
+            throw new SaveFileException("The path `" + dbDir + "' could not be created.");
+        }
+        SaveDirectory state = library.copyTo(dbDir);
+        state.stateFile = path.resolve(STATE_NAME).toFile();
+        state.saveData();
+    }
+
+    /**
+     * Replaces the database in <code>directory</code> with the one in a snapshot, and opens it.  Any library open
+     * in <code>directory</code> must have been closed.  The replaced database is kept until the next restore.
+     *
+     * @param snapshot  directory written by <code>snapshot()</code>
+     * @param directory directory of the library to replace
+     * @param client    client whose credentials the library uses
+     * @return the restored library
+     * @throws SaveFileException if <code>snapshot</code> does not hold a snapshot
+     * @throws IOException       if the database could not be replaced
+     */
+    public static Library restore(File snapshot, File directory, SpotifyClient client)
+    throws SaveFileException, IOException
+    {
+        Path from = snapshot.toPath();
+        Path fromData = from.resolve(DB_NAME).resolve(DATA_NAME);
+        File fromState = from.resolve(STATE_NAME).toFile();
+        if (!Files.isRegularFile(fromData) || !fromState.isFile()) {
+            throw new SaveFileException("The path `" + snapshot + "' does not hold a snapshot.");
+        }
+        Path path = directory.toPath();
+        Path db = path.resolve(DB_NAME);
+        Path oldDb = path.resolve(OLD_DB_NAME);
+        Path newDb = path.resolve(NEW_DB_NAME);
+
+        // the snapshot stays usable as a backup
+        deleteDb(newDb);
+        Files.createDirectories(newDb);
+        Files.copy(fromData, newDb.resolve(DATA_NAME));
+        deleteDb(oldDb);
+        if (Files.exists(db)) {
+            Files.move(db, oldDb, StandardCopyOption.ATOMIC_MOVE);
+        }
+        Files.move(newDb, db, StandardCopyOption.ATOMIC_MOVE);
+
+        SaveDirectory state = Spat.mapper.readValue(fromState, SaveDirectory.class);
+        File stateFile = path.resolve(STATE_NAME).toFile();
+        if (stateFile.exists()) {
+            // keep the credentials of the library being replaced
+            state.token = Spat.mapper.readValue(stateFile, SaveDirectory.class).token;
+        }
+        state.stateFile = stateFile;
+        state.saveData();
+        return loadData(directory, client);
+    }
+
+    /**
+     * Saves and compacts the library in <code>directory</code> by taking a snapshot of it in a sibling directory
+     * and restoring from that.  The library is closed, and the compacted one is returned in its place.
+     *
+     * @param library   open library to compact
+     * @param directory directory of <code>library</code>
+     * @param client    client whose credentials the library uses
+     * @return the compacted library
+     * @throws SaveFileException if the snapshot could not be written
+     * @throws IOException       if the database could not be replaced
+     */
+    public static Library compact(Library library, File directory, SpotifyClient client)
+    throws SaveFileException, IOException
+    {
+        Path tmp = directory.toPath().resolveSibling(directory.getName() + ".compact");
+        deleteSnapshot(tmp);
+        library.saveModified();
+        snapshot(library, tmp.toFile());
+        library.close();
+        Library ret = restore(tmp.toFile(), directory, client);
+        deleteSnapshot(tmp);
+        return ret;
+    }
+
+    private static void deleteDb(Path dbDir)
+    throws IOException
+    {
+        if (!Files.exists(dbDir)) return;
+        try (Stream<Path> files = Files.list(dbDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dbDir);
+    }
+
+    private static void deleteSnapshot(Path snapshot)
+    throws IOException
+    {
+        deleteDb(snapshot.resolve(DB_NAME));
+        Files.deleteIfExists(snapshot.resolve(STATE_NAME));
+        Files.deleteIfExists(snapshot);
+    }
+
+    /**
+     * Describes a copy of this library's database.
+     *
+     * @param dbDir directory holding the copy
+     * @return state of the copy, without a state file
+     */
+    SaveDirectory copyFor(File dbDir)
+    {
+        SaveDirectory ret = new SaveDirectory();
+        ret.dbDir = dbDir;
+        ret.token = token;
+        ret.hasReferenceIndex = hasReferenceIndex;
+        ret.formatVersion = formatVersion;
+        // the copy has no free pages, so the map need not be as large as this one's
+        ret.mapSize = Math.max(Library.INITIAL_MAP_SIZE, dbDir.toPath().resolve(DATA_NAME).toFile().length() * 4);
+        return ret;
     }
 
     void saveData()
@@ -6,6 +6,7 @@ import com.fasterxml.jackson.annotation.JsonUnwrapped;
 
 import java.time.ZonedDateTime;
 import java.util.Objects;
+import java.util.function.Function;
 
 /**
  * Retains metadata about a particular save of a <code>LibraryResource</code>.
@@ -18,6 +19,11 @@ public abstract sealed class SavedResource<T extends LibraryResource>
     private ZonedDateTime addedAt;
     @JsonUnwrapped
     private T resource;
+    /**
+     * Set instead of <code>resource</code> when read from the library, so the resource is read on first access.
+     */
+    private transient String resourceKey;
+    private transient Function<String, T> resolver;
 
     SavedResource()
     {
@@ -29,7 +35,7 @@ public abstract sealed class SavedResource<T extends LibraryResource>
         this.resource = resource;
     }
 
-    static <T extends LibraryResource> SavedResource<T> of(ZonedDateTime addedAt, LibraryResource resource)
+    public static <T extends LibraryResource> SavedResource<T> of(ZonedDateTime addedAt, LibraryResource resource)
     {
         if (resource instanceof Track t) {
             @SuppressWarnings("unchecked")
@@ -56,6 +62,10 @@ public abstract sealed class SavedResource<T extends LibraryResource>
 
     public T getResource()
     {
+        if (resource == null) {
+            final Function<String, T> r = resolver;
+            if (r != null) resource = r.apply(resourceKey);
+        }
         return resource;
     }
 
@@ -64,20 +74,33 @@ public abstract sealed class SavedResource<T extends LibraryResource>
         this.resource = resource;
     }
 
+    /**
+     * Defers reading the resource until it is first accessed.
+     *
+     * @param resourceKey key of the resource
+     * @param resolver    reads the resource with the given key
+     */
+    void setResource(String resourceKey, Function<String, T> resolver)
+    {
+        this.resourceKey = resourceKey;
+        this.resolver = resolver;
+    }
+
     public String toString()
     {
-        return resource.toString();
+        return getKey();
     }
 
     public int hashCode()
     {
-        return Objects.hash(addedAt, resource);
+        return Objects.hash(addedAt, getKey());
     }
 
     public boolean equals(Object other)
     {
+        // resources are equal if and only if their keys are, and the key does not need the resource to be read
         if (other instanceof SavedResource<?> s)
-            return resource.equals(s.getResource()) && addedAt.equals(s.addedAt());
+            return getClass() == s.getClass() && getKey().equals(s.getKey()) && Objects.equals(addedAt, s.addedAt());
         return false;
     }
 
@@ -85,13 +108,13 @@ public abstract sealed class SavedResource<T extends LibraryResource>
     @JsonIgnore
     public String getKey()
     {
-        return resource.getKey();
+        return resource == null && resourceKey != null ? resourceKey : resource.getKey();
     }
 
     @Override
     @JsonIgnore
     public String getName()
     {
-        return resource.getName();
+        return getResource().getName();
     }
 }
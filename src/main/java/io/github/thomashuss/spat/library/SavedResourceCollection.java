@@ -22,6 +22,11 @@ public abstract class SavedResourceCollection<T extends AbstractSpotifyResource>
 {
     @JsonIgnore
     transient ArrayList<SavedResource<T>> resources;
+    /**
+     * Backs a collection which was loaded lazily, until it is first modified.
+     */
+    @JsonIgnore
+    transient List<SavedResource<T>> lazyResources;
     @JsonProperty("name")
     private String name;
 
@@ -61,68 +66,100 @@ public abstract class SavedResourceCollection<T extends AbstractSpotifyResource>
         return name;
     }
 
+    /**
+     * @return the contents, whether or not they were loaded lazily, for reading only
+     */
+    private List<SavedResource<T>> view()
+    {
+        final List<SavedResource<T>> lazy = lazyResources;
+        return lazy == null ? resources : lazy;
+    }
+
+    /**
+     * Copies the contents of a lazily loaded collection into <code>resources</code> so they can be modified.
+     */
+    synchronized void materialize()
+    {
+        if (lazyResources != null) {
+            resources = new ArrayList<>(lazyResources);
+            lazyResources = null;
+        }
+    }
+
     public List<SavedResource<T>> getSavedResources()
     {
-        return Collections.unmodifiableList(resources);
+        return Collections.unmodifiableList(view());
     }
 
     public SavedResource<T> getSavedResourceAt(int i)
     {
-        return resources.get(i);
+        return view().get(i);
     }
 
     public int getNumResources()
     {
-        return resources.size();
+        return view().size();
     }
 
     public boolean isEmpty()
     {
-        return resources.isEmpty();
+        return view().isEmpty();
     }
 
-    public void clearResources()
+    public synchronized void clearResources()
     {
-        resources.clear();
+        if (lazyResources != null) {
+            resources = new ArrayList<>();
+            lazyResources = null;
+        } else {
+            resources.clear();
+        }
     }
 
     public void addResource(SavedResource<T> r)
     {
+        materialize();
         resources.add(r);
     }
 
     public void addResourceAt(SavedResource<T> r, int i)
     {
+        materialize();
         resources.add(i, r);
     }
 
     public void addResources(List<SavedResource<T>> r)
     {
+        materialize();
         resources.addAll(r);
     }
 
     public void addResourcesAt(List<SavedResource<T>> r, int i)
     {
+        materialize();
         resources.addAll(i, r);
     }
 
     public void removeResource(int index)
     {
+        materialize();
         resources.remove(index);
     }
 
     public void removeSavedResourcesInRange(int start, int end)
     {
+        materialize();
         resources.subList(start, end).clear();
     }
 
     public List<T> getRange(int start, int end)
     {
-        return resources.subList(start, end).stream().map(SavedResource::getResource).toList();
+        return view().subList(start, end).stream().map(SavedResource::getResource).toList();
     }
 
     public void move(int insertBefore, int rangeStart, int rangeLength, boolean moveForward)
     {
+        materialize();
         if (insertBefore > rangeStart) {
             Collections.rotate(resources.subList(rangeStart, insertBefore),
                     moveForward ? -rangeLength : rangeLength);
@@ -134,6 +171,7 @@ public abstract class SavedResourceCollection<T extends AbstractSpotifyResource>
 
     public void removeResource(T resource)
     {
+        materialize();
         if (!resources.isEmpty()) {
             Iterator<SavedResource<T>> it = resources.iterator();
             while (it.hasNext()) {
@@ -149,7 +187,7 @@ public abstract class SavedResourceCollection<T extends AbstractSpotifyResource>
     {
         final Predicate<T> test = (testResources instanceof Set || testResources.size() <= 8)
                 ? testResources::contains : new HashSet<>(testResources)::contains;
-        for (SavedResource<T> sr : resources) {
+        for (SavedResource<T> sr : view()) {
             if (test.test(sr.getResource())) return true;
         }
         return false;
@@ -157,6 +195,7 @@ public abstract class SavedResourceCollection<T extends AbstractSpotifyResource>
 
     public void reverse()
     {
+        materialize();
         Collections.reverse(resources);
     }
 }
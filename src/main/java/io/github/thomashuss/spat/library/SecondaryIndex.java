@@ -0,0 +1,16 @@
+package io.github.thomashuss.spat.library;
+
+import org.lmdbjava.Txn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Data derived from the resources of one type, kept in step with them as they are written to and removed from the
+ * library.  Both methods are called in the write transaction which changes the resource.
+ */
+interface SecondaryIndex<T extends LibraryResource>
+{
+    void put(Txn<ByteBuffer> txn, T resource);
+
+    void remove(Txn<ByteBuffer> txn, String key);
+}
@@ -27,6 +27,8 @@ public class Track
     @JsonProperty("is_playable")
     private boolean isPlayable = true;
     private AudioFeatures features;
+    private transient LazyResource<Album> lazyAlbum;
+    private transient LazyResourceArray<Artist> lazyArtists;
 
     Track(String id)
     {
@@ -35,12 +37,25 @@ public class Track
 
     public Album getAlbum()
     {
-        return album;
+        final LazyResource<Album> l = lazyAlbum;
+        return l == null ? album : l.get();
     }
 
     public void setAlbum(Album album)
     {
         this.album = album;
+        lazyAlbum = null;
+    }
+
+    void setAlbum(LazyResource<Album> album)
+    {
+        lazyAlbum = album;
+    }
+
+    String getAlbumKey()
+    {
+        final LazyResource<Album> l = lazyAlbum;
+        return l == null ? LazyResource.keyOf(album) : l.key();
     }
 
     public AudioFeatures getFeatures()
@@ -55,12 +70,25 @@ public class Track
 
     public Artist[] getArtists()
     {
-        return artists;
+        final LazyResourceArray<Artist> l = lazyArtists;
+        return l == null ? artists : l.get();
     }
 
     public void setArtists(Artist[] artists)
     {
         this.artists = artists;
+        lazyArtists = null;
+    }
+
+    void setArtists(LazyResourceArray<Artist> artists)
+    {
+        lazyArtists = artists;
+    }
+
+    String[] getArtistKeys()
+    {
+        final LazyResourceArray<Artist> l = lazyArtists;
+        return l == null ? LazyResourceArray.keysOf(artists) : l.keys();
     }
 
     public int getDuration()
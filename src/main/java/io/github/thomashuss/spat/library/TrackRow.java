@@ -0,0 +1,104 @@
+package io.github.thomashuss.spat.library;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+/**
+ * Reusable, read-only view of what a table shows of a track: its name, the names of its artists and the name of
+ * its album.  Filling one in copies bytes rather than reading the track, so a table can keep one per model and
+ * move it from row to row.
+ *
+ * @see Library#readTrackRow(String, TrackRow)
+ */
+public final class TrackRow
+{
+    private static final byte[] ARTIST_SEPARATOR = ", ".getBytes(StandardCharsets.UTF_8);
+
+    private byte[] bytes = new byte[256];
+    private int nameEnd;
+    private int albumEnd;
+    private int artistsEnd;
+    private int artistCount;
+    /**
+     * Set instead of the bytes when the track is held in memory, since it may have changed since it was saved.
+     */
+    private Track track;
+
+    void clear()
+    {
+        nameEnd = albumEnd = artistsEnd = artistCount = 0;
+        track = null;
+    }
+
+    void setTrack(Track track)
+    {
+        clear();
+        this.track = track;
+    }
+
+    private void ensureCapacity(int len)
+    {
+        if (bytes.length < artistsEnd + len) {
+            bytes = Arrays.copyOf(bytes, Library.roundBufSize(artistsEnd + len));
+        }
+    }
+
+    private void append(ByteBuffer buf, int pos, int len)
+    {
+        ensureCapacity(len);
+        buf.get(pos, bytes, artistsEnd, len);
+        artistsEnd += len;
+    }
+
+    void appendName(ByteBuffer buf, int pos, int len)
+    {
+        append(buf, pos, len);
+        albumEnd = nameEnd = artistsEnd;
+    }
+
+    void appendAlbumName(ByteBuffer buf, int pos, int len)
+    {
+        append(buf, pos, len);
+        albumEnd = artistsEnd;
+    }
+
+    void appendArtistName(ByteBuffer buf, int pos, int len)
+    {
+        if (artistCount++ > 0) {
+            ensureCapacity(ARTIST_SEPARATOR.length);
+            System.arraycopy(ARTIST_SEPARATOR, 0, bytes, artistsEnd, ARTIST_SEPARATOR.length);
+            artistsEnd += ARTIST_SEPARATOR.length;
+        }
+        append(buf, pos, len);
+    }
+
+    public String getName()
+    {
+        if (track != null) return track.getName();
+        return new String(bytes, 0, nameEnd, StandardCharsets.UTF_8);
+    }
+
+    public String getAlbumName()
+    {
+        if (track != null) {
+            final Album album = track.getAlbum();
+            return album == null ? "" : album.getName();
+        }
+        return new String(bytes, nameEnd, albumEnd - nameEnd, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return names of the artists, separated by commas
+     */
+    public String getArtistNames()
+    {
+        if (track != null) {
+            final Artist[] artists = track.getArtists();
+            return artists == null ? "" : Arrays.stream(artists).map(Artist::getName)
+                    .collect(Collectors.joining(", "));
+        }
+        return new String(bytes, albumEnd, artistsEnd - albumEnd, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,105 @@
+package io.github.thomashuss.spat.library;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Frames the values of resources and saved resource chunks, deflating those large enough for it to pay off.
+ */
+/*
+ * A framed value starts with a flag byte.  A raw value goes on with the serialized bytes as they are.  A deflated
+ * value goes on with the length of the serialized bytes as 4 bytes, then a raw deflate stream of them.  Values are
+ * only deflated at or above the threshold, and only kept deflated if that made them smaller, so a value never grows
+ * by more than the flag byte.
+ */
+final class ValueCodec
+        implements AutoCloseable
+{
+    private static final byte RAW = 0;
+    private static final byte DEFLATED = 1;
+    private static final int DEFLATED_HEADER = 5;
+
+    private final int threshold;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(() -> new Inflater(true));
+    private ByteBuffer encoded = ByteBuffer.allocateDirect(1024);
+
+    /**
+     * @param threshold size, in bytes, from which serialized values are deflated; 0 stores every value raw
+     */
+    ValueCodec(int threshold)
+    {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Frames a serialized value for storage.  Must be called while synchronized on the lmdb env.
+     *
+     * @param val serialized value, from its position to its limit; its position is left as it was
+     * @return the framed value, valid until the next call
+     */
+    ByteBuffer encode(ByteBuffer val)
+    {
+        final int pos = val.position();
+        final int len = val.remaining();
+        if (encoded.capacity() < len + 1) {
+            encoded = ByteBuffer.allocateDirect(Library.roundBufSize(len + 1));
+        }
+        final ByteBuffer out = encoded.clear();
+        if (threshold > 0 && len >= threshold && len > DEFLATED_HEADER) {
+            // anything which does not fit in fewer bytes than the raw value is not worth inflating later
+            out.limit(len).put(DEFLATED).putInt(len);
+            deflater.reset();
+            deflater.setInput(val);
+            deflater.finish();
+            while (!deflater.finished() && out.hasRemaining()) {
+                deflater.deflate(out);
+            }
+            val.position(pos);
+            if (deflater.finished()) return out.flip();
+            out.clear();
+        }
+        out.put(RAW).put(val).flip();
+        val.position(pos);
+        return out;
+    }
+
+    /**
+     * Returns the serialized value inside a framed value.
+     *
+     * @param val framed value, from its position to its limit
+     * @return either <code>val</code> advanced past the flag byte, or a new buffer holding the inflated value
+     * @throws IllegalStateException if the value is corrupt
+     */
+    ByteBuffer decode(ByteBuffer val)
+    {
+        final int pos = val.position();
+        if (val.get(pos) == RAW) return val.position(pos + 1);
+
+        // deserializing a chunk reads the resources it refers to, so the buffer cannot be shared by the thread
+        final ByteBuffer out = ByteBuffer.allocate(val.getInt(pos + 1));
+        final Inflater inf = inflater.get();
+        inf.reset();
+        inf.setInput(val.position(pos + DEFLATED_HEADER));
+        try {
+            while (out.hasRemaining()) {
+                if (inf.inflate(out) == 0 && (inf.finished() || inf.needsInput())) {
+                    throw new IllegalStateException("Deflated value is truncated");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Deflated value is corrupt", e);
+        } finally {
+            val.position(pos);
+        }
+        return out.flip();
+    }
+
+    @Override
+    public void close()
+    {
+        deflater.end();
+    }
+}
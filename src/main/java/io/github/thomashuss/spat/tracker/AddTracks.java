@@ -7,6 +7,8 @@ import io.github.thomashuss.spat.library.Library;
 import io.github.thomashuss.spat.library.Playlist;
 import io.github.thomashuss.spat.library.Track;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.time.ZonedDateTime;
 import java.util.List;
@@ -15,6 +17,7 @@ public class AddTracks
         extends PlaylistEdit
         implements TrackInsertion
 {
+    static final byte TYPE = 'a';
     private final ZonedDateTime addedAt;
     private final List<Track> tracks;
     private final int index;
@@ -27,6 +30,23 @@ public class AddTracks
         this.addedAt = ZonedDateTime.now();
     }
 
+    private AddTracks(Playlist playlist, List<Track> tracks, int index, ZonedDateTime addedAt)
+    {
+        super(playlist);
+        this.tracks = tracks;
+        this.index = index;
+        this.addedAt = addedAt;
+    }
+
+    static AddTracks read(DataInput in, Library library)
+    throws IOException
+    {
+        final Playlist playlist = library.playlistOf(in.readUTF());
+        final int index = in.readInt();
+        final ZonedDateTime addedAt = readDate(in);
+        return new AddTracks(playlist, readTracks(in, library), index, addedAt);
+    }
+
     public static AddTracks of(Playlist playlist, List<Track> tracks, int index)
     throws IllegalEditException
     {
@@ -68,6 +88,17 @@ public class AddTracks
         client.addTracksToPlaylist(playlist, tracks, index, progressTracker);
     }
 
+    @Override
+    void write(DataOutput out)
+    throws IOException
+    {
+        out.writeByte(TYPE);
+        out.writeUTF(playlist.getKey());
+        out.writeInt(index);
+        writeDate(out, addedAt);
+        writeTracks(out, tracks);
+    }
+
     @Override
     public String toString()
     {
@@ -4,17 +4,34 @@ import io.github.thomashuss.spat.client.ProgressTracker;
 import io.github.thomashuss.spat.client.SpotifyClient;
 import io.github.thomashuss.spat.client.SpotifyClientException;
 import io.github.thomashuss.spat.library.Library;
-import io.github.thomashuss.spat.library.LibraryResource;
+import io.github.thomashuss.spat.library.SavedResource;
+import io.github.thomashuss.spat.library.SavedResourceCollection;
+import io.github.thomashuss.spat.library.Track;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 public abstract class Edit
 {
     Edit prev;
     Edit next;
     boolean seen = false;
+    /**
+     * Key of the edit in the library's edit journal.
+     */
+    long seq;
 
-    public abstract LibraryResource getTarget();
+    public abstract SavedResourceCollection<?> getTarget();
 
     abstract void commit(Library library);
 
@@ -26,4 +43,134 @@ public abstract class Edit
 
     abstract void push(SpotifyClient client, ProgressTracker progressTracker)
     throws SpotifyClientException, IOException;
+
+    /**
+     * Writes everything needed to recreate the edit without looking at the collection it applies to, starting
+     * with the type byte that <code>read()</code> dispatches on.
+     *
+     * @param out output to write to
+     */
+    abstract void write(DataOutput out)
+    throws IOException;
+
+    byte[] toRecord()
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static Edit fromRecord(byte[] record, Library library)
+    throws IOException
+    {
+        return read(new DataInputStream(new ByteArrayInputStream(record)), library);
+    }
+
+    /**
+     * Reads an edit written by <code>write()</code>.  The edit is not committed.
+     *
+     * @param in      input to read from
+     * @param library library holding the resources the edit refers to
+     * @return edit
+     */
+    static Edit read(DataInput in, Library library)
+    throws IOException
+    {
+        final byte type = in.readByte();
+        return switch (type) {
+            case AddTracks.TYPE -> AddTracks.read(in, library);
+            case MoveTracks.TYPE -> MoveTracks.read(in, library);
+            case RemoveTracks.TYPE -> RemoveTracks.read(in, library);
+            case SaveTracks.TYPE -> SaveTracks.read(in, library);
+            case UnsaveTracks.TYPE -> UnsaveTracks.read(in, library);
+            case ResourceFilter.TYPE -> ResourceFilter.read(in, library);
+            default -> throw new IOException("Unknown edit type " + type);
+        };
+    }
+
+    static SavedResourceCollection<Track> readTarget(DataInput in, Library library)
+    throws IOException
+    {
+        final String key = in.readUTF();
+        final SavedResourceCollection<Track> likedSongs = library.getLikedSongs();
+        return key.equals(likedSongs.getKey()) ? likedSongs : library.playlistOf(key);
+    }
+
+    static void writeDate(DataOutput out, ZonedDateTime date)
+    throws IOException
+    {
+        out.writeUTF(date == null ? "" : date.toString());
+    }
+
+    static ZonedDateTime readDate(DataInput in)
+    throws IOException
+    {
+        final String date = in.readUTF();
+        return date.isEmpty() ? null : ZonedDateTime.parse(date);
+    }
+
+    static void writeIndices(DataOutput out, List<Integer> indices)
+    throws IOException
+    {
+        out.writeInt(indices.size());
+        for (int i : indices) out.writeInt(i);
+    }
+
+    static List<Integer> readIndices(DataInput in)
+    throws IOException
+    {
+        final int size = in.readInt();
+        final List<Integer> ret = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) ret.add(in.readInt());
+        return ret;
+    }
+
+    static void writeTracks(DataOutput out, List<Track> tracks)
+    throws IOException
+    {
+        out.writeInt(tracks.size());
+        for (Track t : tracks) out.writeUTF(t.getKey());
+    }
+
+    static List<Track> readTracks(DataInput in, Library library)
+    throws IOException
+    {
+        final int size = in.readInt();
+        final List<String> keys = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) keys.add(in.readUTF());
+        final Map<String, Track> tracks = library.tracksOf(keys);
+        return keys.stream().map(tracks::get).toList();
+    }
+
+    static void writeSavedTracks(DataOutput out, List<SavedResource<Track>> sr)
+    throws IOException
+    {
+        out.writeInt(sr.size());
+        for (SavedResource<Track> s : sr) {
+            out.writeUTF(s.getKey());
+            writeDate(out, s.addedAt());
+        }
+    }
+
+    static List<SavedResource<Track>> readSavedTracks(DataInput in, Library library)
+    throws IOException
+    {
+        final int size = in.readInt();
+        final List<String> keys = new ArrayList<>(size);
+        final List<ZonedDateTime> dates = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            keys.add(in.readUTF());
+            dates.add(readDate(in));
+        }
+        final Map<String, Track> tracks = library.tracksOf(keys);
+        final List<SavedResource<Track>> ret = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ret.add(SavedResource.of(dates.get(i), tracks.get(keys.get(i))));
+        }
+        return ret;
+    }
 }
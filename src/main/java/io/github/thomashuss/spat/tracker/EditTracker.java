@@ -1,6 +1,5 @@
 package io.github.thomashuss.spat.tracker;
 
-import io.github.thomashuss.spat.Spat;
 import io.github.thomashuss.spat.client.ProgressTracker;
 import io.github.thomashuss.spat.client.SpotifyClient;
 import io.github.thomashuss.spat.client.SpotifyClientException;
@@ -8,16 +7,23 @@ import io.github.thomashuss.spat.library.Library;
 import io.github.thomashuss.spat.library.LibraryResource;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.function.Consumer;
 
+/**
+ * Keeps the edits made locally until they are pushed.  Committed edits are journaled in the library, so that they
+ * can be undone and pushed after a restart.
+ */
 public class EditTracker
 {
     private final Map<LibraryResource, Integer> modifications;
     private Library library;
     private Edit head;
     private Edit last;
+    private long nextSeq;
 
     public EditTracker()
     {
@@ -27,6 +33,47 @@ public class EditTracker
     public void setLibrary(Library library)
     {
         this.library = library;
+        head = null;
+        last = null;
+        modifications.clear();
+        nextSeq = 0;
+        if (library != null) replay();
+    }
+
+    /**
+     * Recreates the edits journaled in the library.  Their effects are already in the stored collections, so they
+     * are not committed again.  An edit which cannot be read is dropped from the journal, along with every edit
+     * after it.
+     */
+    private void replay()
+    {
+        final List<Long> unreadable = new ArrayList<>();
+        for (Map.Entry<Long, byte[]> e : library.readEditJournal().entrySet()) {
+            nextSeq = e.getKey() + 1;
+            if (!unreadable.isEmpty()) {
+                unreadable.add(e.getKey());
+                continue;
+            }
+            final Edit edit;
+            try {
+                edit = Edit.fromRecord(e.getValue(), library);
+            } catch (IOException | RuntimeException ex) {
+                System.err.println("WARNING: could not replay edit " + e.getKey() + ": " + ex);
+                unreadable.add(e.getKey());
+                continue;
+            }
+            edit.seen = true;
+            edit.seq = e.getKey();
+            if (head == null) {
+                head = edit;
+            } else {
+                last.next = edit;
+                edit.prev = last;
+            }
+            last = edit;
+            modifications.merge(edit.getTarget(), 1, Integer::sum);
+        }
+        library.unjournalEdits(unreadable);
     }
 
     public void commit(Edit edit)
@@ -35,6 +82,7 @@ public class EditTracker
             throw new RuntimeException("Edit already seen");
         }
         edit.seen = true;
+        edit.seq = nextSeq++;
 
         if (head == null || last == null) {
             head = edit;
@@ -43,7 +91,7 @@ public class EditTracker
             last.next = edit;
             edit.prev = last;
         }
-        edit.commit(library);
+        library.journalEdit(edit.seq, edit.toRecord(), edit.getTarget(), () -> edit.commit(library));
         last = edit;
 
         if (modifications.merge(edit.getTarget(), 1, Integer::sum) == 1) {
@@ -66,11 +114,20 @@ public class EditTracker
         return last != null;
     }
 
+    /**
+     * @param resource resource to look up
+     * @return whether any edit to <code>resource</code> is applied and has not been pushed
+     */
+    public boolean hasChangesFor(LibraryResource resource)
+    {
+        return modifications.containsKey(resource);
+    }
+
     public Edit undo(Library library)
     {
         if (last != null) {
-            last.revert(library);
-            Edit ret = last;
+            final Edit ret = last;
+            library.unjournalEdit(ret.seq, ret.getTarget(), () -> ret.revert(library));
             last = last.prev;
 
             if (modifications.merge(ret.getTarget(), -1, (a, b) -> a == 1 ? null : a + b) == null) {
@@ -86,7 +143,7 @@ public class EditTracker
     {
         Edit e = peekRedo();
         if (e != null) {
-            e.commit(library);
+            library.journalEdit(e.seq, e.toRecord(), e.getTarget(), () -> e.commit(library));
             last = e;
             if (modifications.merge(e.getTarget(), 1, Integer::sum) == 1) {
                 e.mark(library);
@@ -97,8 +154,10 @@ public class EditTracker
 
     public void abandonEditsFor(LibraryResource resource)
     {
+        final List<Long> abandoned = new ArrayList<>();
         for (Edit e = head; e != null; e = e.next) {
             if (e.getTarget() == resource) {
+                abandoned.add(e.seq);
                 if (e.prev != null)
                     e.prev.next = e.next;
                 if (e.next != null)
@@ -112,6 +171,7 @@ public class EditTracker
         if (last != null && last.getTarget() == resource)
             last = null;
         modifications.remove(resource);
+        library.unjournalEdits(abandoned);
     }
 
     public void forEach(Consumer<Edit> func)
@@ -126,16 +186,14 @@ public class EditTracker
 
     public void pushAll(SpotifyClient client, ProgressTracker childProgressTracker,
                         ProgressTracker parentProgressTracker)
-    throws SpotifyClientException, IOException, InterruptedException
+    throws SpotifyClientException, IOException
     {
         if (head != null) {
-            final long cooldown = Spat.preferences.getLong(Spat.P_PUSH_COOLDOWN, 500);
             Edit e = head;
             final Edit bound = last == null ? null : last.next;
             int done = 0;
             try {
                 for (; e != bound; e = e.next) {
-                    if (done != 0) Thread.sleep(cooldown);
                     e.push(client, childProgressTracker);
                     parentProgressTracker.updateProgress(done++);
                 }
@@ -146,6 +204,8 @@ public class EditTracker
                     head.prev = null;
                 }
                 modifications.clear();
+                // pushed edits no longer need to survive a restart
+                library.compactEditJournal(head == null ? -1 : head.seq);
             }
         }
     }
@@ -6,11 +6,14 @@ import io.github.thomashuss.spat.client.SpotifyClientException;
 import io.github.thomashuss.spat.library.Library;
 import io.github.thomashuss.spat.library.Playlist;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 
 public class MoveTracks
         extends PlaylistEdit
 {
+    static final byte TYPE = 'm';
     public final int insertBefore;
     public final int rangeStart;
     public final int rangeLength;
@@ -30,6 +33,12 @@ public class MoveTracks
         return new MoveTracks(playlist, insertBefore, rangeStart, rangeLength);
     }
 
+    static MoveTracks read(DataInput in, Library library)
+    throws IOException
+    {
+        return new MoveTracks(library.playlistOf(in.readUTF()), in.readInt(), in.readInt(), in.readInt());
+    }
+
     @Override
     void commit(Library library)
     {
@@ -49,6 +58,17 @@ public class MoveTracks
         client.reorderPlaylist(playlist, insertBefore, rangeStart, rangeLength);
     }
 
+    @Override
+    void write(DataOutput out)
+    throws IOException
+    {
+        out.writeByte(TYPE);
+        out.writeUTF(playlist.getKey());
+        out.writeInt(insertBefore);
+        out.writeInt(rangeStart);
+        out.writeInt(rangeLength);
+    }
+
     @Override
     public String toString()
     {
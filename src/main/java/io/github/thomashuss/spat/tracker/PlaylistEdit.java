@@ -1,7 +1,6 @@
 package io.github.thomashuss.spat.tracker;
 
 import io.github.thomashuss.spat.library.Library;
-import io.github.thomashuss.spat.library.LibraryResource;
 import io.github.thomashuss.spat.library.Playlist;
 
 public abstract class PlaylistEdit
@@ -15,7 +14,7 @@ public abstract class PlaylistEdit
     }
 
     @Override
-    public LibraryResource getTarget()
+    public Playlist getTarget()
     {
         return playlist;
     }
@@ -8,6 +8,8 @@ import io.github.thomashuss.spat.library.Playlist;
 import io.github.thomashuss.spat.library.SavedResource;
 import io.github.thomashuss.spat.library.Track;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -18,6 +20,7 @@ public class RemoveTracks
         extends PlaylistEdit
         implements TrackRemoval
 {
+    static final byte TYPE = 'r';
     private final boolean isSequential;
     private final List<SavedResource<Track>> sr;
     private final List<Integer> indices;
@@ -48,6 +51,24 @@ public class RemoveTracks
         this.isSequential = isSequential;
     }
 
+    private RemoveTracks(Playlist playlist, List<Integer> sortedIndices, List<SavedResource<Track>> sr,
+                         boolean isSequential)
+    {
+        super(playlist);
+        this.indices = sortedIndices;
+        this.sr = sr;
+        this.isSequential = isSequential;
+    }
+
+    static RemoveTracks read(DataInput in, Library library)
+    throws IOException
+    {
+        final Playlist playlist = library.playlistOf(in.readUTF());
+        final boolean isSequential = in.readBoolean();
+        final List<Integer> indices = readIndices(in);
+        return new RemoveTracks(playlist, indices, readSavedTracks(in, library), isSequential);
+    }
+
     public static RemoveTracks of(Playlist playlist, List<Integer> indices)
     {
         return new RemoveTracks(playlist, indices);
@@ -106,6 +127,17 @@ public class RemoveTracks
         client.removeTracksFromPlaylist(playlist, sr.stream().map(SavedResource::getResource).toList(), progressTracker);
     }
 
+    @Override
+    void write(DataOutput out)
+    throws IOException
+    {
+        out.writeByte(TYPE);
+        out.writeUTF(playlist.getKey());
+        out.writeBoolean(isSequential);
+        writeIndices(out, indices);
+        writeSavedTracks(out, sr);
+    }
+
     @Override
     public String toString()
     {
@@ -1,14 +1,17 @@
 package io.github.thomashuss.spat.tracker;
 
-import io.github.thomashuss.spat.Spat;
 import io.github.thomashuss.spat.client.ProgressTracker;
 import io.github.thomashuss.spat.client.SpotifyClient;
 import io.github.thomashuss.spat.client.SpotifyClientException;
 import io.github.thomashuss.spat.library.AbstractSpotifyResource;
 import io.github.thomashuss.spat.library.Library;
+import io.github.thomashuss.spat.library.Playlist;
 import io.github.thomashuss.spat.library.SavedResource;
 import io.github.thomashuss.spat.library.SavedResourceCollection;
+import io.github.thomashuss.spat.library.Track;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -18,6 +21,7 @@ import java.util.function.Consumer;
 public abstract class ResourceFilter<T extends AbstractSpotifyResource>
         extends Edit
 {
+    static final byte TYPE = 'f';
     protected final Library library;
     private ArrayList<Change<T>> changes;
     private Edit head;
@@ -51,6 +55,18 @@ public abstract class ResourceFilter<T extends AbstractSpotifyResource>
         else for (Edit e = last; e != null; e = e.prev) func.accept(e);
     }
 
+    static ResourceFilter<Track> read(DataInput in, Library library)
+    throws IOException
+    {
+        final SavedResourceCollection<Track> target = readTarget(in, library);
+        final ResourceFilter<Track> ret = target instanceof Playlist p
+                ? new PlaylistFilter(library, p) : new SavedTrackFilter(library, target);
+        for (int n = in.readInt(); n > 0; n--) {
+            ret.enqueue(Edit.read(in, library));
+        }
+        return ret;
+    }
+
     abstract T getByKey(String key);
 
     abstract void remove(List<Change<T>> removals, boolean isSequential);
@@ -96,16 +112,22 @@ public abstract class ResourceFilter<T extends AbstractSpotifyResource>
     void push(SpotifyClient client, ProgressTracker progressTracker)
     throws SpotifyClientException, IOException
     {
-        final long cooldown = Spat.preferences.getLong(Spat.P_PUSH_COOLDOWN, 500);
-        try {
-            Edit e = head;
-            while (e != null) {
-                e.push(client, progressTracker);
-                e = e.next;
-                if (e != null) Thread.sleep(cooldown);
-            }
-        } catch (InterruptedException ex) {
-            throw new RuntimeException(ex);
+        for (Edit e = head; e != null; e = e.next) {
+            e.push(client, progressTracker);
+        }
+    }
+
+    @Override
+    void write(DataOutput out)
+    throws IOException
+    {
+        out.writeByte(TYPE);
+        out.writeUTF(getTarget().getKey());
+        int n = 0;
+        for (Edit e = head; e != null; e = e.next) n++;
+        out.writeInt(n);
+        for (Edit e = head; e != null; e = e.next) {
+            e.write(out);
         }
     }
 
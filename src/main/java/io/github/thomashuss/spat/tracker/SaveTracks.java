@@ -7,6 +7,8 @@ import io.github.thomashuss.spat.library.Library;
 import io.github.thomashuss.spat.library.SavedResourceCollection;
 import io.github.thomashuss.spat.library.Track;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
@@ -17,6 +19,7 @@ public class SaveTracks
         extends SrcEdit<Track>
         implements TrackInsertion
 {
+    static final byte TYPE = 's';
     private final ZonedDateTime addedAt;
     private final List<Track> tracks;
     private final int index;
@@ -33,6 +36,23 @@ public class SaveTracks
         this.addedAt = ZonedDateTime.now();
     }
 
+    private SaveTracks(SavedResourceCollection<Track> ls, List<Track> tracks, int index, ZonedDateTime addedAt)
+    {
+        super(ls);
+        this.tracks = tracks;
+        this.index = index;
+        this.addedAt = addedAt;
+    }
+
+    static SaveTracks read(DataInput in, Library library)
+    throws IOException
+    {
+        final SavedResourceCollection<Track> ls = readTarget(in, library);
+        final int index = in.readInt();
+        final ZonedDateTime addedAt = readDate(in);
+        return new SaveTracks(ls, readTracks(in, library), index, addedAt);
+    }
+
     public static SaveTracks of(Library library, List<Track> tracks)
     throws IllegalEditException
     {
@@ -73,6 +93,17 @@ public class SaveTracks
         client.saveTracks(tracks, progressTracker);
     }
 
+    @Override
+    void write(DataOutput out)
+    throws IOException
+    {
+        out.writeByte(TYPE);
+        out.writeUTF(src.getKey());
+        out.writeInt(index);
+        writeDate(out, addedAt);
+        writeTracks(out, tracks);
+    }
+
     @Override
     public String toString()
     {
@@ -2,7 +2,6 @@ package io.github.thomashuss.spat.tracker;
 
 import io.github.thomashuss.spat.library.AbstractSpotifyResource;
 import io.github.thomashuss.spat.library.Library;
-import io.github.thomashuss.spat.library.LibraryResource;
 import io.github.thomashuss.spat.library.SavedResourceCollection;
 
 public abstract class SrcEdit<T extends AbstractSpotifyResource>
@@ -16,7 +15,7 @@ public abstract class SrcEdit<T extends AbstractSpotifyResource>
     }
 
     @Override
-    public LibraryResource getTarget()
+    public SavedResourceCollection<T> getTarget()
     {
         return src;
     }
@@ -8,6 +8,8 @@ import io.github.thomashuss.spat.library.SavedResource;
 import io.github.thomashuss.spat.library.SavedResourceCollection;
 import io.github.thomashuss.spat.library.Track;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -18,6 +20,7 @@ public class UnsaveTracks
         extends SrcEdit<Track>
         implements TrackRemoval
 {
+    static final byte TYPE = 'u';
     private final List<Integer> indices;
     private final List<SavedResource<Track>> sr;
     private final boolean isSequential;
@@ -48,6 +51,24 @@ public class UnsaveTracks
         this.isSequential = isSequential;
     }
 
+    private UnsaveTracks(SavedResourceCollection<Track> ls, List<Integer> indices, List<SavedResource<Track>> sr,
+                         boolean isSequential)
+    {
+        super(ls);
+        this.indices = indices;
+        this.sr = sr;
+        this.isSequential = isSequential;
+    }
+
+    static UnsaveTracks read(DataInput in, Library library)
+    throws IOException
+    {
+        final SavedResourceCollection<Track> ls = readTarget(in, library);
+        final boolean isSequential = in.readBoolean();
+        final List<Integer> indices = readIndices(in);
+        return new UnsaveTracks(ls, indices, readSavedTracks(in, library), isSequential);
+    }
+
     public static UnsaveTracks of(Library library, List<Integer> indices)
     {
         return new UnsaveTracks(library.getLikedSongs(), indices);
@@ -106,6 +127,17 @@ public class UnsaveTracks
         client.unsaveTracks(sr.stream().map(SavedResource::getResource).toList(), progressTracker);
     }
 
+    @Override
+    void write(DataOutput out)
+    throws IOException
+    {
+        out.writeByte(TYPE);
+        out.writeUTF(src.getKey());
+        out.writeBoolean(isSequential);
+        writeIndices(out, indices);
+        writeSavedTracks(out, sr);
+    }
+
     @Override
     public String toString()
     {